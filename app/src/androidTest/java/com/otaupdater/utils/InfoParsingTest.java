@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.test.InstrumentationTestCase;
+import android.util.JsonReader;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Checks that reading update info straight from the response stream gives the same result as building an
+ * org.json tree first, on responses in the API's format. Runs on a device, android.util.JsonReader is only a stub
+ * in JVM tests.
+ */
+public class InfoParsingTest extends InstrumentationTestCase {
+
+    public void testRomPull() throws Exception {
+        RomInfo info = assertSameInfo(RomInfo.FACTORY, readAsset("rom_pull.json"), "data");
+        assertNotNull(info);
+        assertEquals("Nightly ROM", info.name);
+        assertEquals(2, info.mirrors.length);
+        assertNotNull(info.delta);
+        assertEquals("4.4.4-20141013", info.delta.baseVersion);
+    }
+
+    public void testKernelPull() throws Exception {
+        KernelInfo info = assertSameInfo(KernelInfo.FACTORY, readAsset("kernel_pull.json"), "data");
+        assertNotNull(info);
+        // numbers are read as strings either way
+        assertEquals("20141018", info.version);
+        assertNull(info.delta);
+    }
+
+    public void testInfoPull() throws Exception {
+        String payload = readAsset("info_pull.json");
+
+        RomInfo rom = assertSameInfo(RomInfo.FACTORY, payload, "data", RomInfo.KEY_NAME);
+        assertNotNull(rom);
+        assertEquals(0, rom.mirrors.length);
+
+        KernelInfo kernel = assertSameInfo(KernelInfo.FACTORY, payload, "data", KernelInfo.KEY_NAME);
+        assertNotNull(kernel);
+        assertEquals(1, kernel.mirrors.length);
+    }
+
+    public void testNoUpdate() throws Exception {
+        assertNull(assertSameInfo(RomInfo.FACTORY, readAsset("rom_pull_none.json"), "data"));
+    }
+
+    /**
+     * Parses the object at the given path three ways: from an org.json tree of the whole response, straight from
+     * the stream, and from the tree {@link JsonUtils#readObject} builds out of the stream.
+     *
+     * @return the info from the org.json tree
+     */
+    private static <T extends BaseInfo> T assertSameInfo(BaseInfo.InfoFactory<T> factory, String payload, String... path)
+            throws Exception {
+        JSONObject tree = new JSONObject(payload);
+        for (String key : path) {
+            tree = tree.getJSONObject(key);
+        }
+        T fromTree = factory.fromJSON(tree);
+
+        T fromStream = factory.fromReader(readerAt(payload, path));
+        assertSameInfo(fromTree, fromStream);
+
+        T fromBuiltTree = factory.fromJSON(JsonUtils.readObject(readerAt(payload, path)));
+        assertSameInfo(fromTree, fromBuiltTree);
+
+        return fromTree;
+    }
+
+    private static void assertSameInfo(BaseInfo expected, BaseInfo actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertNotNull(actual);
+
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.version, actual.version);
+        assertEquals(expected.changelog, actual.changelog);
+        assertEquals(expected.url, actual.url);
+        assertEquals(expected.md5, actual.md5);
+        assertEquals(expected.date, actual.date);
+        assertTrue(Arrays.equals(expected.mirrors, actual.mirrors));
+
+        if (expected.delta == null) {
+            assertNull(actual.delta);
+        } else {
+            assertNotNull(actual.delta);
+            assertEquals(expected.delta.url, actual.delta.url);
+            assertEquals(expected.delta.md5, actual.delta.md5);
+            assertEquals(expected.delta.baseVersion, actual.delta.baseVersion);
+            assertEquals(expected.delta.baseMd5, actual.delta.baseMd5);
+        }
+    }
+
+    /**
+     * @return a reader positioned at the value found by following the keys from the top level object
+     */
+    private static JsonReader readerAt(String payload, String... path) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(payload));
+        for (String key : path) {
+            reader.beginObject();
+            while (!reader.nextName().equals(key)) {
+                reader.skipValue();
+            }
+        }
+        return reader;
+    }
+
+    private String readAsset(String name) throws IOException {
+        InputStream in = getInstrumentation().getContext().getAssets().open(name);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
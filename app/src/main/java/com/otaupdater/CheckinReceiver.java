@@ -23,6 +23,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.otaupdater.utils.APIUtils;
@@ -33,7 +34,19 @@ import com.otaupdater.utils.PropUtils;
 import com.otaupdater.utils.RomInfo;
 import com.otaupdater.utils.Utils;
 
+import java.util.Random;
+
 public class CheckinReceiver extends BroadcastReceiver {
+    public static final String ACTION_RETRY = "com.otaupdater.action.CHECKIN_RETRY";
+
+    private static final long BASE_RETRY_DELAY = 300000; // 5 minutes
+    private static final long MAX_RETRY_DELAY = 21600000; // 6 hours
+    private static final int MAX_RETRY_SHIFT = 10;
+    // spreads the daily checkins of devices that booted around the same time
+    private static final long DAILY_JITTER = 3600000;
+
+    private static final Random RANDOM = new Random();
+
     @Override
     public void onReceive(Context ctx, Intent intent) {
         final Context context = ctx.getApplicationContext();
@@ -55,6 +68,8 @@ public class CheckinReceiver extends BroadcastReceiver {
                         }
                     } else {
                         Log.v(Config.LOG_TAG + "Receiver", "Found invalid stored rom update");
+                        // most likely it was just flashed, don't keep reporting the old build
+                        PropUtils.refresh();
                         cfg.clearStoredRomUpdate();
                         RomInfo.FACTORY.clearUpdateNotif(context);
                     }
@@ -78,6 +93,8 @@ public class CheckinReceiver extends BroadcastReceiver {
                         }
                     } else {
                         Log.v(Config.LOG_TAG + "Receiver", "Found invalid stored kernel update");
+                        // most likely it was just flashed, don't keep reporting the old build
+                        PropUtils.refresh();
                         cfg.clearStoredKernelUpdate();
                         KernelInfo.FACTORY.clearUpdateNotif(context);
                     }
@@ -92,46 +109,45 @@ public class CheckinReceiver extends BroadcastReceiver {
             setDailyAlarm(context);
         }
 
+        if (ACTION_RETRY.equals(intent.getAction())) {
+            Log.v(Config.LOG_TAG + "Receiver", "Retrying checkin (" + cfg.getCheckinRetries() + ")");
+        } else {
+            cfg.setCheckinRetries(0);
+        }
+
         Utils.updateDeviceRegistration(context);
 
         if (!Utils.checkPlayServices(context)) {
             Log.v(Config.LOG_TAG + "Receiver", "No market, using pull method");
 
-            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-
-            if (PropUtils.isRomOtaEnabled()) {
-                final WakeLock romWL = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, CheckinReceiver.class.getName());
-                romWL.acquire();
-
-                APIUtils.fetchRomInfo(context, new BaseInfo.InfoLoadAdapter<RomInfo>(RomInfo.class, context) {
-                    @Override
-                    public void onInfoLoaded(RomInfo info) {
-                        ROMTab.notifyActiveFragment();
-                    }
-
-                    @Override
-                    public void onComplete(boolean success) {
-                        romWL.release();
-                    }
-                });
-            }
+            if (!PropUtils.isRomOtaEnabled() && !PropUtils.isKernelOtaEnabled()) return;
 
-            if (PropUtils.isKernelOtaEnabled()) {
-                final WakeLock kernelWL = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, CheckinReceiver.class.getName());
-                kernelWL.acquire();
-
-                APIUtils.fetchKernelInfo(context, new BaseInfo.InfoLoadAdapter<KernelInfo>(KernelInfo.class, context) {
-                    @Override
-                    public void onInfoLoaded(KernelInfo info) {
-                        KernelTab.notifyActiveFragment();
-                    }
+            // one request for both, so the radio only has to wake up once
+            PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            final WakeLock wl = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, CheckinReceiver.class.getName());
+            wl.acquire();
 
-                    @Override
-                    public void onComplete(boolean success) {
-                        kernelWL.release();
+            APIUtils.fetchUpdateInfo(context, new BaseInfo.InfoLoadAdapter<RomInfo>(RomInfo.class, context) {
+                @Override
+                public void onInfoLoaded(RomInfo info) {
+                    ROMTab.notifyActiveFragment();
+                }
+            }, new BaseInfo.InfoLoadAdapter<KernelInfo>(KernelInfo.class, context) {
+                @Override
+                public void onInfoLoaded(KernelInfo info) {
+                    KernelTab.notifyActiveFragment();
+                }
+            }, new APIUtils.APIAdapter() {
+                @Override
+                public void onComplete(boolean success) {
+                    if (success) {
+                        onCheckinSucceeded(context);
+                    } else {
+                        scheduleRetry(context);
                     }
-                });
-            }
+                    wl.release();
+                }
+            });
         }
     }
 
@@ -141,6 +157,75 @@ public class CheckinReceiver extends BroadcastReceiver {
         PendingIntent pendingIntent = PendingIntent.getBroadcast(ctx, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
 
         am.cancel(pendingIntent);
-        am.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis() + 86400000, AlarmManager.INTERVAL_DAY, pendingIntent);
+        am.setInexactRepeating(AlarmManager.RTC, System.currentTimeMillis() + 86400000 + (long) (RANDOM.nextDouble() * DAILY_JITTER),
+                AlarmManager.INTERVAL_DAY, pendingIntent);
+    }
+
+    /**
+     * Schedules another checkin after one of its requests failed. Failed registrations, pings and pulls all end
+     * up here, but only one retry is ever pending. The delay doubles with every retry up to MAX_RETRY_DELAY, and
+     * is randomized so devices that failed at the same time, e.g. during a server outage, don't all come back at
+     * the same time either. Without a network connection the retry waits for one instead.
+     */
+    public static synchronized void scheduleRetry(Context ctx) {
+        ctx = ctx.getApplicationContext();
+        // the flags are part of what identifies a PendingIntent, the lookup has to use the ones the alarm was set with
+        if (getRetryIntent(ctx, PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_ONE_SHOT) != null ||
+                ConnectivityReceiver.isEnabled(ctx)) {
+            Log.v(Config.LOG_TAG + "Receiver", "Checkin retry already pending");
+            return;
+        }
+
+        if (!Utils.dataAvailable(ctx)) {
+            Log.v(Config.LOG_TAG + "Receiver", "No network, retrying checkin once connected");
+            ConnectivityReceiver.setEnabled(ctx, true);
+            return;
+        }
+
+        Config cfg = Config.getInstance(ctx);
+        int retries = cfg.getCheckinRetries();
+        long delay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << Math.min(retries, MAX_RETRY_SHIFT));
+        delay = delay / 2 + (long) (RANDOM.nextDouble() * (delay / 2));
+
+        // only counted once the alarm is really set, a call that found one pending mustn't stretch the backoff
+        setRetryAlarm(ctx, delay);
+        cfg.setCheckinRetries(retries + 1);
+    }
+
+    /**
+     * Called when one of the checkin's requests went through, so the next failure starts the backoff over. Left
+     * alone while a retry is pending, another request of the same checkin failed and its retry still counts.
+     */
+    public static synchronized void onCheckinSucceeded(Context ctx) {
+        ctx = ctx.getApplicationContext();
+        if (getRetryIntent(ctx, PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_ONE_SHOT) != null ||
+                ConnectivityReceiver.isEnabled(ctx)) {
+            return;
+        }
+        Config.getInstance(ctx).setCheckinRetries(0);
+    }
+
+    /**
+     * Called by {@link ConnectivityReceiver} once a retry that was waiting for a network connection can go ahead.
+     */
+    static synchronized void onNetworkAvailable(Context ctx) {
+        // everyone whose connection came back at the same time shouldn't check in at the same time
+        setRetryAlarm(ctx, (long) (RANDOM.nextDouble() * BASE_RETRY_DELAY));
+    }
+
+    private static void setRetryAlarm(Context ctx, long delay) {
+        Log.v(Config.LOG_TAG + "Receiver", "Retrying checkin in " + (delay / 1000) + "s");
+        AlarmManager am = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+                getRetryIntent(ctx, PendingIntent.FLAG_ONE_SHOT));
+    }
+
+    /**
+     * One-shot, so it only exists until the alarm went off
+     */
+    private static PendingIntent getRetryIntent(Context ctx, int flags) {
+        Intent intent = new Intent(ctx, CheckinReceiver.class);
+        intent.setAction(ACTION_RETRY);
+        return PendingIntent.getBroadcast(ctx, 0, intent, flags);
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import com.otaupdater.utils.Config;
+import com.otaupdater.utils.Utils;
+
+/**
+ * Hands a checkin retry that is waiting for a network connection back to {@link CheckinReceiver} once there is
+ * one. Disabled in the manifest and only enabled while a retry is waiting, so the app isn't woken up by every
+ * connectivity change.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        final Context context = ctx.getApplicationContext();
+        if (!Utils.dataAvailable(context)) return;
+
+        Log.v(Config.LOG_TAG + "Connectivity", "Network available");
+        setEnabled(context, false);
+        CheckinReceiver.onNetworkAvailable(context);
+    }
+
+    static boolean isEnabled(Context ctx) {
+        return ctx.getPackageManager().getComponentEnabledSetting(new ComponentName(ctx, ConnectivityReceiver.class))
+                == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
+    }
+
+    static void setEnabled(Context ctx, boolean enabled) {
+        ctx.getPackageManager().setComponentEnabledSetting(new ComponentName(ctx, ConnectivityReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT,
+                PackageManager.DONT_KILL_APP);
+    }
+}
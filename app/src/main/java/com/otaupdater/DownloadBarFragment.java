@@ -26,8 +26,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -38,16 +36,15 @@ import android.widget.Toast;
 import com.otaupdater.utils.BaseInfo;
 import com.otaupdater.utils.Config;
 import com.otaupdater.utils.DownloadDialogCallback;
+import com.otaupdater.utils.DownloadObserver;
 import com.otaupdater.utils.DownloadStatus;
-
-import java.lang.ref.WeakReference;
+import com.otaupdater.utils.DownloadTracker;
 
 public class DownloadBarFragment extends Fragment {
 
     private static DownloadBarFragment activeFragment = null;
 
     private Config cfg;
-    private DownloadManager dm;
 
     private View romContainer;
     private ProgressBar romProgressBar;
@@ -62,28 +59,19 @@ public class DownloadBarFragment extends Fragment {
     private View romKernelSeperator;
     private View bottomBorder;
 
-    protected static final int REFRESH_DELAY = 1000;
-    private final Handler REFRESH_HANDLER = new RefreshHandler(this);
-
-    private static class RefreshHandler extends Handler {
-        private final WeakReference<DownloadBarFragment> fragment;
-
-        public RefreshHandler(DownloadBarFragment fragment) {
-            this.fragment = new WeakReference<DownloadBarFragment>(fragment);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            fragment.get().updateStatus();
-        }
-    }
+    private DownloadObserver observer;
 
     @Override
     public void onAttach(Activity activity) {
         super.onAttach(activity);
 
         cfg = Config.getInstance(activity);
-        dm = (DownloadManager) activity.getSystemService(Context.DOWNLOAD_SERVICE);
+        observer = new DownloadObserver(activity, new DownloadObserver.RefreshListener() {
+            @Override
+            public boolean onRefresh() {
+                return activeFragment == DownloadBarFragment.this && updateStatus();
+            }
+        });
     }
 
     @Override
@@ -107,7 +95,7 @@ public class DownloadBarFragment extends Fragment {
             @Override
             public void onClick(View view) {
                 if (!cfg.isDownloadingRom()) return;
-                dm.remove(cfg.getRomDownloadID());
+                DownloadTracker.remove(getActivity(), cfg.getRomDownloadID());
                 cfg.clearDownloadingRom();
                 updateStatus();
             }
@@ -130,7 +118,7 @@ public class DownloadBarFragment extends Fragment {
             @Override
             public void onClick(View view) {
                 if (!cfg.isDownloadingKernel()) return;
-                dm.remove(cfg.getKernelDownloadID());
+                DownloadTracker.remove(getActivity(), cfg.getKernelDownloadID());
                 cfg.clearDownloadingKernel();
                 updateStatus();
             }
@@ -145,20 +133,24 @@ public class DownloadBarFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
-        updateStatus();
         activeFragment = this;
+        observer.start();
     }
 
     @Override
     public void onPause() {
         activeFragment = null;
-        REFRESH_HANDLER.removeCallbacksAndMessages(null);
+        observer.stop();
         super.onPause();
     }
 
-    private void updateStatus() {
-        DownloadStatus romDlStatus = DownloadStatus.forDownloadID(getActivity(), dm, cfg.getRomDownloadID());
-        DownloadStatus kernelDlStatus = DownloadStatus.forDownloadID(getActivity(), dm, cfg.getKernelDownloadID());
+    /**
+     * @return true if a download is being verified, which DownloadManager won't report progress for
+     */
+    private boolean updateStatus() {
+        DownloadTracker.Snapshot snapshot = DownloadTracker.queryTracked(getActivity());
+        DownloadStatus romDlStatus = snapshot.get(cfg.getRomDownloadID());
+        DownloadStatus kernelDlStatus = snapshot.get(cfg.getKernelDownloadID());
 
         if (romDlStatus == null) cfg.clearDownloadingRom();
         if (kernelDlStatus == null) cfg.clearDownloadingKernel();
@@ -166,10 +158,6 @@ public class DownloadBarFragment extends Fragment {
         updateViews(romDlStatus, romContainer, romProgressBar, romProgressText, romStatusText);
         updateViews(kernelDlStatus, kernelContainer, kernelProgressBar, kernelProgressText, kernelStatusText);
 
-        if (isActive(romDlStatus) || isActive(kernelDlStatus)) {
-            REFRESH_HANDLER.sendMessageDelayed(REFRESH_HANDLER.obtainMessage(), REFRESH_DELAY);
-        }
-
         boolean romVisible = romContainer.getVisibility() == View.VISIBLE;
         boolean kernelVisible = kernelContainer.getVisibility() == View.VISIBLE;
 
@@ -184,6 +172,8 @@ public class DownloadBarFragment extends Fragment {
         } else {
             romKernelSeperator.setVisibility(View.GONE);
         }
+
+        return (romDlStatus != null && romDlStatus.isVerifying()) || (kernelDlStatus != null && kernelDlStatus.isVerifying());
     }
 
     private void updateViews(DownloadStatus status, View container, ProgressBar progressBar, TextView progressText, TextView statusText) {
@@ -195,7 +185,17 @@ public class DownloadBarFragment extends Fragment {
             if (isActive(status)) {
                 progressBar.setVisibility(View.VISIBLE);
 
-                if (status.getStatus() == DownloadManager.STATUS_PENDING) {
+                if (status.isVerifying()) {
+                    progressText.setVisibility(View.GONE);
+
+                    progressBar.setIndeterminate(false);
+                    progressBar.setMax(100);
+                    progressBar.setProgress(status.getVerifyProgress());
+
+                    statusText.setVisibility(View.VISIBLE);
+                    statusText.setText(getString(status.isPatching() ? R.string.downloads_patching : R.string.downloads_verifying,
+                            status.getVerifyProgress()));
+                } else if (status.getStatus() == DownloadManager.STATUS_PENDING) {
                     progressText.setVisibility(View.GONE);
 
                     progressBar.setIndeterminate(true);
@@ -203,9 +203,9 @@ public class DownloadBarFragment extends Fragment {
                     statusText.setVisibility(View.VISIBLE);
                     statusText.setText(R.string.downloads_starting);
                 } else {
-                    if (status.getStatus() == DownloadManager.STATUS_PAUSED) {
-                        progressText.setVisibility(progressText.getVisibility() == View.VISIBLE ? View.GONE : View.VISIBLE);
+                    progressText.setVisibility(View.VISIBLE);
 
+                    if (status.getStatus() == DownloadManager.STATUS_PAUSED) {
                         int pausedStatus = -1;
                         switch (status.getReason()) {
                         case DownloadManager.PAUSED_QUEUED_FOR_WIFI:
@@ -229,8 +229,6 @@ public class DownloadBarFragment extends Fragment {
                             statusText.setText(pausedStatus);
                         }
                     } else {
-                        progressText.setVisibility(View.VISIBLE);
-
                         statusText.setVisibility(View.GONE);
                     }
 
@@ -245,7 +243,7 @@ public class DownloadBarFragment extends Fragment {
                 progressBar.setVisibility(View.GONE);
                 statusText.setVisibility(View.VISIBLE);
 
-                if (status.getStatus() == DownloadManager.STATUS_SUCCESSFUL) {
+                if (status.isSuccessful()) {
                     statusText.setText(R.string.downloads_complete);
                 } else {
                     statusText.setText(status.getErrorString(getActivity()));
@@ -258,7 +256,8 @@ public class DownloadBarFragment extends Fragment {
         return state != null && (
                 state.getStatus() == DownloadManager.STATUS_PAUSED ||
                 state.getStatus() == DownloadManager.STATUS_RUNNING ||
-                state.getStatus() == DownloadManager.STATUS_PENDING
+                state.getStatus() == DownloadManager.STATUS_PENDING ||
+                state.isVerifying()
         );
     }
 
@@ -315,21 +314,32 @@ public class DownloadBarFragment extends Fragment {
 
         final AlertDialog dlg = builder.create();
 
-        final Handler REFRESH_HANDLER = new Handler() {
+        final DownloadObserver observer = new DownloadObserver(ctx, new DownloadObserver.RefreshListener() {
             @Override
-            public void handleMessage(Message msg) {
-                DownloadStatus status = DownloadStatus.forDownloadID(ctx, dm, downloadID);
+            public boolean onRefresh() {
+                DownloadStatus status = DownloadTracker.queryTracked(ctx, downloadID).get(downloadID);
 
                 if (status == null) {
                     dlg.dismiss();
-                    return;
+                    return false;
                 }
 
                 if (isActive(status)) {
                     dlg.getButton(DialogInterface.BUTTON_NEGATIVE).setText(android.R.string.cancel);
                     progressBar.setVisibility(View.VISIBLE);
 
-                    if (status.getStatus() == DownloadManager.STATUS_PENDING) {
+                    if (status.isVerifying()) {
+                        dlg.getButton(DialogInterface.BUTTON_NEGATIVE).setText(R.string.hide);
+                        progressText.setVisibility(View.GONE);
+
+                        progressBar.setIndeterminate(false);
+                        progressBar.setMax(100);
+                        progressBar.setProgress(status.getVerifyProgress());
+
+                        statusText.setVisibility(View.VISIBLE);
+                        statusText.setText(ctx.getString(status.isPatching() ? R.string.downloads_patching : R.string.downloads_verifying,
+                                status.getVerifyProgress()));
+                    } else if (status.getStatus() == DownloadManager.STATUS_PENDING) {
                         progressText.setVisibility(View.GONE);
 
                         progressBar.setIndeterminate(true);
@@ -337,9 +347,9 @@ public class DownloadBarFragment extends Fragment {
                         statusText.setVisibility(View.VISIBLE);
                         statusText.setText(R.string.downloads_starting);
                     } else {
-                        if (status.getStatus() == DownloadManager.STATUS_PAUSED) {
-                            progressText.setVisibility(progressText.getVisibility() == View.VISIBLE ? View.GONE : View.VISIBLE);
+                        progressText.setVisibility(View.VISIBLE);
 
+                        if (status.getStatus() == DownloadManager.STATUS_PAUSED) {
                             int pausedStatus = -1;
                             switch (status.getReason()) {
                             case DownloadManager.PAUSED_QUEUED_FOR_WIFI:
@@ -363,8 +373,6 @@ public class DownloadBarFragment extends Fragment {
                                 statusText.setText(pausedStatus);
                             }
                         } else {
-                            progressText.setVisibility(View.VISIBLE);
-
                             statusText.setVisibility(View.GONE);
                         }
 
@@ -388,9 +396,9 @@ public class DownloadBarFragment extends Fragment {
                     }
                 }
 
-                this.sendMessageDelayed(this.obtainMessage(), DownloadBarFragment.REFRESH_DELAY);
+                return status.isVerifying();
             }
-        };
+        });
 
         dlg.setOnShowListener(new DialogInterface.OnShowListener() {
             @Override
@@ -400,10 +408,13 @@ public class DownloadBarFragment extends Fragment {
                     public void onClick(View v) {
                         DownloadStatus status = DownloadStatus.forDownloadID(ctx, dm, downloadID);
 
-                        if (isActive(status)) {
+                        if (status == null || status.isVerifying()) {
+                            // download itself is done, the check carries on in the background
+                            dlg.dismiss();
+                        } else if (isActive(status)) {
                             dlg.dismiss();
-                            dm.remove(downloadID);
-                        } else if (status.getStatus() == DownloadManager.STATUS_SUCCESSFUL) {
+                            DownloadTracker.remove(ctx, downloadID);
+                        } else if (status.isSuccessful()) {
                             Intent i = new Intent(ctx, DownloadsActivity.class);
                             i.setAction(info.getFlashAction());
                             info.addToIntent(i);
@@ -415,7 +426,7 @@ public class DownloadBarFragment extends Fragment {
                     }
                 });
 
-                REFRESH_HANDLER.sendMessage(REFRESH_HANDLER.obtainMessage());
+                observer.start();
                 if (callback != null) {
                     callback.onDialogShown(dlg);
                     callback.onDownloadDialogShown(downloadID, dlg);
@@ -425,7 +436,7 @@ public class DownloadBarFragment extends Fragment {
         dlg.setOnDismissListener(new DialogInterface.OnDismissListener() {
             @Override
             public void onDismiss(DialogInterface dialog) {
-                REFRESH_HANDLER.removeCallbacksAndMessages(null);
+                observer.stop();
                 if (callback != null) {
                     callback.onDialogClosed(dlg);
                     callback.onDownloadDialogClosed(downloadID, dlg);
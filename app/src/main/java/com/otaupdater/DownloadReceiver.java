@@ -24,11 +24,15 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.support.v4.app.NotificationCompat;
+import android.util.Log;
 
 import com.otaupdater.utils.BaseInfo;
+import com.otaupdater.utils.Config;
 import com.otaupdater.utils.DownloadStatus;
+import com.otaupdater.utils.DownloadTracker;
 import com.otaupdater.utils.KernelInfo;
 import com.otaupdater.utils.RomInfo;
+import com.otaupdater.utils.SegmentedDownload;
 
 public class DownloadReceiver extends BroadcastReceiver {
     public static final String DL_ROM_ACTION = "com.otaupdater.action.DL_ROM_ACTION";
@@ -49,68 +53,24 @@ public class DownloadReceiver extends BroadcastReceiver {
             KernelInfo.FACTORY.fromIntent(intent).startDownload(context);
         } else if (action.equals(CLEAR_DL_ACTION)) {
             if (intent.hasExtra(DownloadManager.EXTRA_DOWNLOAD_ID)) {
-                DownloadManager dm = (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE);
-                dm.remove(intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1));
+                DownloadTracker.remove(context, intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1));
                 DownloadBarFragment.notifyActiveFragment();
             }
         } else if (action.equals(DownloadManager.ACTION_DOWNLOAD_COMPLETE)) {
-            DownloadStatus status = DownloadStatus.forDownloadID(context, intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1));
+            long downloadID = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+            DownloadStatus status = DownloadTracker.queryTracked(context, downloadID).get(downloadID);
             if (status == null) return;
 
             BaseInfo info = status.getInfo();
             if (info == null) return;
 
-            int error = status.getStatus() == DownloadManager.STATUS_SUCCESSFUL ? info.checkDownloadedFile() : status.getReason();
-
-            NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-
-            if (error == 0) {
-                Intent mainIntent = new Intent(context, OTAUpdaterActivity.class);
-                mainIntent.setAction(info.getNotifAction());
-                mainIntent.putExtra(OTAUpdaterActivity.EXTRA_FLAG_DOWNLOAD_DIALOG, true);
-                PendingIntent mainPIntent = PendingIntent.getActivity(context, 0, mainIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-
-                Intent flashIntent = new Intent(context, DownloadsActivity.class);
-                flashIntent.setAction(info.getFlashAction());
-                info.addToIntent(flashIntent);
-                PendingIntent flashPIntent = PendingIntent.getActivity(context, 0, flashIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-
-                Notification notif = new NotificationCompat.Builder(context)
-                        .setTicker(context.getString(info.getDownloadDoneTitle()))
-                        .setContentTitle(context.getString(info.getDownloadDoneTitle()))
-                        .setSmallIcon(R.drawable.ic_stat_av_download)
-                        .setContentText(context.getString(R.string.notif_completed))
-                        .setContentIntent(mainPIntent)
-                        .addAction(R.drawable.ic_action_system_update, context.getString(R.string.install), flashPIntent)
-                        .build();
-                nm.notify(info.getFlashNotifID(), notif);
-            } else {
-                Intent mainIntent = new Intent(context, OTAUpdaterActivity.class);
-                mainIntent.setAction(info.getNotifAction());
-                info.addToIntent(mainIntent);
-                PendingIntent mainPIntent = PendingIntent.getActivity(context, 0, mainIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-
-                Intent dlIntent = new Intent(context, DownloadReceiver.class);
-                dlIntent.setAction(info.getDownloadAction());
-                info.addToIntent(dlIntent);
-                PendingIntent dlPIntent = PendingIntent.getBroadcast(context, 1, dlIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-
-                Intent clearIntent = new Intent(context, DownloadReceiver.class);
-                clearIntent.setAction(CLEAR_DL_ACTION);
-                clearIntent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, status.getId());
-                PendingIntent clearPIntent = PendingIntent.getBroadcast(context, 2, clearIntent, PendingIntent.FLAG_CANCEL_CURRENT);
-
-                Notification notif = new NotificationCompat.Builder(context)
-                        .setTicker(context.getString(info.getDownloadFailedTitle()))
-                        .setContentTitle(context.getString(info.getDownloadFailedTitle()))
-                        .setContentText(status.getErrorString(context))
-                        .setSmallIcon(R.drawable.ic_stat_warning)
-                        .setContentIntent(mainPIntent)
-                        .setDeleteIntent(clearPIntent)
-                        .addAction(R.drawable.ic_action_refresh, context.getString(R.string.retry), dlPIntent)
-                        .build();
-                nm.notify(info.getFailedNotifID(), notif);
+            if (!status.isVerifying()) {
+                onDownloadDone(context, status, info);
+                return;
             }
+
+            // hashing a full ROM can take longer than a broadcast may run, the service waits for it instead
+            DownloadVerifyService.start(context, downloadID);
         } else if (action.equals(DownloadManager.ACTION_NOTIFICATION_CLICKED)) {
             long[] ids = intent.getLongArrayExtra(DownloadManager.EXTRA_NOTIFICATION_CLICK_DOWNLOAD_IDS);
             if (ids.length == 0) return;
@@ -128,4 +88,83 @@ public class DownloadReceiver extends BroadcastReceiver {
             context.startActivity(i);
         }
     }
+
+    static void onDownloadDone(Context context, DownloadStatus status, BaseInfo info) {
+        if (status.needsFullDownload()) {
+            // patch didn't produce the right zip, get the whole thing instead
+            Log.w(Config.LOG_TAG + "Receiver", "patching " + info.name + " " + info.version + " failed, downloading full zip");
+            DownloadTracker.remove(context, status.getId());
+            info.delta = null;
+            info.startDownload(context);
+            return;
+        }
+
+        if (!status.isSuccessful() && status.getReason() == DownloadManager.ERROR_CANNOT_RESUME &&
+                !SegmentedDownload.isSegmentedID(status.getId())) {
+            // DownloadManager gave up on resuming and threw away what it had. carry on with our own downloader,
+            // which keeps track of what's on disk and can pick up from there the next time the connection drops
+            Log.w(Config.LOG_TAG + "Receiver", "download of " + info.name + " " + info.version + " can't resume, switching to in-app download");
+            DownloadTracker.remove(context, status.getId());
+            info.startDownload(context, true);
+            return;
+        }
+
+        showResultNotif(context, status, info);
+    }
+
+    private static void showResultNotif(Context context, DownloadStatus status, BaseInfo info) {
+        int error = status.isSuccessful() ? 0 : status.getReason();
+        // never tell the user a download is ready when it isn't
+        if (!status.isSuccessful() && error == 0) error = DownloadManager.ERROR_UNKNOWN;
+
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        if (error == 0) {
+            Intent mainIntent = new Intent(context, OTAUpdaterActivity.class);
+            mainIntent.setAction(info.getNotifAction());
+            mainIntent.putExtra(OTAUpdaterActivity.EXTRA_FLAG_DOWNLOAD_DIALOG, true);
+            PendingIntent mainPIntent = PendingIntent.getActivity(context, 0, mainIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+            Intent flashIntent = new Intent(context, DownloadsActivity.class);
+            flashIntent.setAction(info.getFlashAction());
+            info.addToIntent(flashIntent);
+            PendingIntent flashPIntent = PendingIntent.getActivity(context, 0, flashIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+            Notification notif = new NotificationCompat.Builder(context)
+                    .setTicker(context.getString(info.getDownloadDoneTitle()))
+                    .setContentTitle(context.getString(info.getDownloadDoneTitle()))
+                    .setSmallIcon(R.drawable.ic_stat_av_download)
+                    .setContentText(context.getString(R.string.notif_completed))
+                    .setContentIntent(mainPIntent)
+                    .addAction(R.drawable.ic_action_system_update, context.getString(R.string.install), flashPIntent)
+                    .build();
+            nm.notify(info.getFlashNotifID(), notif);
+        } else {
+            Intent mainIntent = new Intent(context, OTAUpdaterActivity.class);
+            mainIntent.setAction(info.getNotifAction());
+            info.addToIntent(mainIntent);
+            PendingIntent mainPIntent = PendingIntent.getActivity(context, 0, mainIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+            Intent dlIntent = new Intent(context, DownloadReceiver.class);
+            dlIntent.setAction(info.getDownloadAction());
+            info.addToIntent(dlIntent);
+            PendingIntent dlPIntent = PendingIntent.getBroadcast(context, 1, dlIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+            Intent clearIntent = new Intent(context, DownloadReceiver.class);
+            clearIntent.setAction(CLEAR_DL_ACTION);
+            clearIntent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, status.getId());
+            PendingIntent clearPIntent = PendingIntent.getBroadcast(context, 2, clearIntent, PendingIntent.FLAG_CANCEL_CURRENT);
+
+            Notification notif = new NotificationCompat.Builder(context)
+                    .setTicker(context.getString(info.getDownloadFailedTitle()))
+                    .setContentTitle(context.getString(info.getDownloadFailedTitle()))
+                    .setContentText(status.getErrorString(context))
+                    .setSmallIcon(R.drawable.ic_stat_warning)
+                    .setContentIntent(mainPIntent)
+                    .setDeleteIntent(clearPIntent)
+                    .addAction(R.drawable.ic_action_refresh, context.getString(R.string.retry), dlPIntent)
+                    .build();
+            nm.notify(info.getFailedNotifID(), notif);
+        }
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater;
+
+import android.app.DownloadManager;
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+
+import com.otaupdater.utils.DownloadStatus;
+import com.otaupdater.utils.DownloadTracker;
+import com.otaupdater.utils.DownloadVerifier;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Waits for a finished download to be verified and then posts its result notification. Hashing a full ROM that
+ * wasn't followed while it downloaded (e.g. after the process was restarted) can take far longer than a broadcast
+ * receiver may run, the service keeps the process alive until it's done instead.
+ */
+public class DownloadVerifyService extends IntentService {
+
+    public DownloadVerifyService() {
+        super("DownloadVerifyService");
+    }
+
+    public static void start(Context ctx, long id) {
+        Intent intent = new Intent(ctx, DownloadVerifyService.class);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, id);
+        ctx.startService(intent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+        DownloadStatus status = DownloadTracker.queryTracked(this, id).get(id);
+        if (status == null || status.getInfo() == null) return;
+
+        if (status.isVerifying()) {
+            final CountDownLatch verified = new CountDownLatch(1);
+            status.getInfo().getVerifier().start(new DownloadVerifier.Listener() {
+                @Override
+                public void onVerified(int error) {
+                    verified.countDown();
+                }
+            });
+            try {
+                verified.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            status = DownloadTracker.queryTracked(this, id).get(id);
+            if (status == null || status.getInfo() == null) return;
+        }
+
+        DownloadReceiver.onDownloadDone(this, status, status.getInfo());
+    }
+}
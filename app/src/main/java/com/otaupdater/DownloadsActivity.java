@@ -20,7 +20,9 @@ import android.app.ActionBar;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.Fragment;
+import android.app.ProgressDialog;
 import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
@@ -28,6 +30,7 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.support.v4.app.NavUtils;
+import android.util.Log;
 import android.view.MenuItem;
 import android.widget.ArrayAdapter;
 import android.widget.Toast;
@@ -38,10 +41,10 @@ import com.otaupdater.utils.Config;
 import com.otaupdater.utils.KernelInfo;
 import com.otaupdater.utils.PropUtils;
 import com.otaupdater.utils.RomInfo;
+import com.otaupdater.utils.ShellCommand;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.DataOutputStream;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -254,65 +257,101 @@ public class DownloadsActivity extends BaseDownloadDialogActivity implements Act
         dlg.show();
     }
 
-    private void flashFiles(String[] files, boolean backup, boolean wipeCache, boolean wipeData) {
-        try {
-            Process p = Runtime.getRuntime().exec("su");
-            DataOutputStream os = new DataOutputStream(p.getOutputStream());
-            os.writeBytes("mkdir -p /cache/recovery/\n");
-            os.writeBytes("rm -f /cache/recovery/command\n");
-            os.writeBytes("rm -f /cache/recovery/extendedcommand\n");
-            os.writeBytes("echo 'boot-recovery' >> /cache/recovery/command\n");
-
-            //no official cwm for sony, so use extendedcommand. sony devices cannot use regular command file
-            if (Build.MANUFACTURER.toLowerCase(Locale.US).contains("sony")) {
-                if (backup) {
-                    os.writeBytes("echo 'backup_rom /sdcard/clockworkmod/backup/ota_" +
-                        new SimpleDateFormat("yyyy-MM-dd_HH.mm", Locale.US).format(new Date()) +
-                        "' >> /cache/recovery/extendedcommand\n");
-                }
-                if (wipeData) {
-                    os.writeBytes("echo 'format(\"/data\");' >> /cache/recovery/extendedcommand\n");
-                }
-                if (wipeCache) {
-                    os.writeBytes("echo 'format(\"/cache\");' >> /cache/recovery/extendedcommand\n");
+    private void flashFiles(final String[] files, final boolean backup, final boolean wipeCache, final boolean wipeData) {
+        final ProgressDialog progress = ProgressDialog.show(this, "", getString(R.string.alert_install_preparing), true, false);
+        // waits on su, which can mean waiting for the user to answer its prompt
+        new AsyncTask<Void, Void, Boolean>() {
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    return writeRecoveryCommand(files, backup, wipeCache, wipeData) && rebootRecovery();
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
+                return false;
+            }
 
-                for (String file : files) {
-                    os.writeBytes("echo 'install_zip(\"" + file + "\");' >> /cache/recovery/extendedcommand\n");
-                }
-            } else {
-                if (backup) {
-                    os.writeBytes("echo '--nandroid' >> /cache/recovery/command\n");
-                }
-                if (wipeData) {
-                    os.writeBytes("echo '--wipe_data' >> /cache/recovery/command\n");
-                }
-                if (wipeCache) {
-                    os.writeBytes("echo '--wipe_cache' >> /cache/recovery/command\n");
-                }
+            @Override
+            protected void onPostExecute(Boolean rebooting) {
+                if (progress.isShowing()) progress.dismiss();
+                if (!rebooting) Toast.makeText(DownloadsActivity.this, R.string.toast_flash_error, Toast.LENGTH_LONG).show();
+            }
+        }.execute();
+    }
 
-                for (String file: files) {
-                    os.writeBytes("echo '--update_package=" + file + "' >> /cache/recovery/command\n");
-                }
+    private boolean writeRecoveryCommand(String[] files, boolean backup, boolean wipeCache, boolean wipeData) {
+        // chained with &&, the shell's exit status has to tell whether every single write went through
+        ArrayList<String> cmds = new ArrayList<String>();
+        cmds.add("mkdir -p /cache/recovery/");
+        cmds.add("rm -f /cache/recovery/command");
+        cmds.add("rm -f /cache/recovery/extendedcommand");
+        cmds.add("echo 'boot-recovery' >> /cache/recovery/command");
+
+        //no official cwm for sony, so use extendedcommand. sony devices cannot use regular command file
+        if (Build.MANUFACTURER.toLowerCase(Locale.US).contains("sony")) {
+            if (backup) {
+                cmds.add("echo 'backup_rom /sdcard/clockworkmod/backup/ota_" +
+                    new SimpleDateFormat("yyyy-MM-dd_HH.mm", Locale.US).format(new Date()) +
+                    "' >> /cache/recovery/extendedcommand");
+            }
+            if (wipeData) {
+                cmds.add("echo 'format(\"/data\");' >> /cache/recovery/extendedcommand");
+            }
+            if (wipeCache) {
+                cmds.add("echo 'format(\"/cache\");' >> /cache/recovery/extendedcommand");
             }
 
-            String rebootCmd = PropUtils.getRebootCmd();
-            if (!rebootCmd.equals("$$NULL$$")) {
-                os.writeBytes("sync\n");
-                if (rebootCmd.endsWith(".sh")) {
-                    os.writeBytes("sh " + rebootCmd + "\n");
-                } else {
-                    os.writeBytes(rebootCmd + "\n");
-                }
+            for (String file : files) {
+                cmds.add("echo 'install_zip(\"" + file + "\");' >> /cache/recovery/extendedcommand");
+            }
+        } else {
+            if (backup) {
+                cmds.add("echo '--nandroid' >> /cache/recovery/command");
+            }
+            if (wipeData) {
+                cmds.add("echo '--wipe_data' >> /cache/recovery/command");
+            }
+            if (wipeCache) {
+                cmds.add("echo '--wipe_cache' >> /cache/recovery/command");
             }
 
-            os.writeBytes("sync\n");
-            os.writeBytes("exit\n");
-            os.flush();
-            p.waitFor();
-            ((PowerManager) getSystemService(POWER_SERVICE)).reboot("recovery");
-        } catch (Exception e) {
-            e.printStackTrace();
+            for (String file: files) {
+                cmds.add("echo '--update_package=" + file + "' >> /cache/recovery/command");
+            }
+        }
+        cmds.add("sync");
+
+        StringBuilder script = new StringBuilder();
+        for (String cmd : cmds) {
+            if (script.length() != 0) script.append(" &&\n");
+            script.append(cmd);
         }
+
+        // default timeout, so a su prompt the user hasn't answered yet isn't taken for a failure
+        ShellCommand shell = new ShellCommand();
+        ShellCommand.CommandResult r = shell.su.runWaitFor(script.toString());
+        if (r.success()) return true;
+
+        Log.w(Config.LOG_TAG + "Flash", "writing recovery command failed with " + r.exit_value + ": " + r.stderr);
+        // a half written command file could wipe without flashing, don't leave it for the next recovery boot
+        shell.su.runWaitFor("rm -f /cache/recovery/command /cache/recovery/extendedcommand");
+        return false;
+    }
+
+    /**
+     * Only called once the recovery command is complete.
+     */
+    private boolean rebootRecovery() {
+        // the build is about to change, in case the reboot doesn't happen right away
+        PropUtils.refresh();
+
+        String rebootCmd = PropUtils.getRebootCmd();
+        if (!rebootCmd.equals("$$NULL$$")) {
+            // doesn't come back if it works
+            new ShellCommand().su.runWaitFor("sync\n" + (rebootCmd.endsWith(".sh") ? "sh " + rebootCmd : rebootCmd));
+        }
+
+        ((PowerManager) getSystemService(POWER_SERVICE)).reboot("recovery");
+        return true;
     }
 }
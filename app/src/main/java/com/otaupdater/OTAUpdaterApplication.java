@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater;
+
+import android.app.Application;
+
+import com.otaupdater.utils.Md5Cache;
+import com.otaupdater.utils.PropUtils;
+
+public class OTAUpdaterApplication extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PropUtils.warmUp();
+        Md5Cache.init(this);
+        SUPackageReceiver.register(this);
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.util.Log;
+
+import com.otaupdater.utils.Config;
+import com.otaupdater.utils.ShellCommand;
+
+/**
+ * Drops the cached su check when a superuser app is installed, removed or updated. Registered at runtime
+ * since the cache only lives as long as the process does.
+ */
+public class SUPackageReceiver extends BroadcastReceiver {
+    public static void register(Context ctx) {
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        ctx.registerReceiver(new SUPackageReceiver(), filter);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (data == null) return;
+
+        String pkg = data.getSchemeSpecificPart();
+        if (ShellCommand.isSUPackage(pkg)) {
+            Log.v(Config.LOG_TAG + "SUPackage", pkg + " changed, invalidating su check");
+            ShellCommand.invalidateSUCache();
+        }
+    }
+}
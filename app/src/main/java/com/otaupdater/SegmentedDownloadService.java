@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater;
+
+import android.app.DownloadManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.otaupdater.utils.Config;
+import com.otaupdater.utils.SegmentedDownload;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Runs segmented downloads in the foreground, with the progress notification of one of them, so the process
+ * isn't killed halfway through an hour-long download once the UI is gone. If it is killed anyway, the start
+ * intent is redelivered and the download resumes from its state file.
+ */
+public class SegmentedDownloadService extends Service {
+    private final LinkedHashMap<Long, SegmentedDownload> running = new LinkedHashMap<Long, SegmentedDownload>();
+    private final Handler handler = new Handler();
+    private long foregroundID = 0;
+
+    public static void start(Context ctx, long id) {
+        Intent intent = new Intent(ctx, SegmentedDownloadService.class);
+        intent.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, id);
+        ctx.startService(intent);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        final long id = intent == null ? 0 : intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, 0);
+        SegmentedDownload download = SegmentedDownload.get(this, id);
+
+        if (download != null && !running.containsKey(id)) {
+            boolean started = download.resume(new Runnable() {
+                @Override
+                public void run() {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onDownloadFinished(id);
+                        }
+                    });
+                }
+            });
+            if (started) {
+                Log.v(Config.LOG_TAG + "SegmentedDLService", "running download " + id);
+                running.put(id, download);
+                updateForeground();
+            }
+        }
+
+        if (running.isEmpty()) stopSelf();
+        return START_REDELIVER_INTENT;
+    }
+
+    private void onDownloadFinished(long id) {
+        running.remove(id);
+        if (id == foregroundID) {
+            // takes the finished download's notification with it
+            stopForeground(true);
+            foregroundID = 0;
+        }
+
+        if (running.isEmpty()) {
+            stopSelf();
+        } else {
+            updateForeground();
+        }
+    }
+
+    private void updateForeground() {
+        if (foregroundID != 0) return;
+
+        SegmentedDownload download = running.values().iterator().next();
+        foregroundID = download.getId();
+        startForeground(download.getNotifID(), download.buildProgressNotif());
+    }
+}
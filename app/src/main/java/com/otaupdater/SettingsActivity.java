@@ -64,6 +64,7 @@ public class SettingsActivity extends PreferenceActivity implements DialogCallba
     private Preference accountPref;
     private CheckBoxPreference notifPref;
     private CheckBoxPreference wifidlPref;
+    private CheckBoxPreference paralleldlPref;
     private CheckBoxPreference autodlPref;
     private Preference resetWarnPref;
     private Preference prokeyPref;
@@ -145,6 +146,9 @@ public class SettingsActivity extends PreferenceActivity implements DialogCallba
         wifidlPref = (CheckBoxPreference) findPreference("wifidl_pref");
         wifidlPref.setChecked(cfg.getWifiOnlyDl());
 
+        paralleldlPref = (CheckBoxPreference) findPreference("paralleldl_pref");
+        paralleldlPref.setChecked(cfg.getParallelDl());
+
         autodlPref = (CheckBoxPreference) findPreference("autodl_pref");
         autodlPref.setChecked(cfg.getAutoDlState());
 
@@ -202,6 +206,8 @@ public class SettingsActivity extends PreferenceActivity implements DialogCallba
             cfg.setShowNotif(notifPref.isChecked());
         } else if (preference == wifidlPref) {
             cfg.setWifiOnlyDl(wifidlPref.isChecked());
+        } else if (preference == paralleldlPref) {
+            cfg.setParallelDl(paralleldlPref.isChecked());
         } else if (preference == autodlPref) {
             if (cfg.hasProKey()) {
                 cfg.setAutoDlState(autodlPref.isChecked());
@@ -1,28 +1,74 @@
 package com.otaupdater.utils;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
-import com.google.android.gms.auth.GoogleAuthUtil;
 import com.otaupdater.R;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class APIUtils {
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int SO_TIMEOUT = 30000;
+
+    // few enough that background calls can't hog the connection pool, a user pull waits for at most one of them
+    private static final int MAX_THREADS = 2;
+    private static final int THREAD_KEEP_ALIVE = 30; // seconds
+
+    private static HttpClient httpClient = null;
+
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    /** calls that are queued or running, by endpoint and request body */
+    private static final HashMap<String, Call> CALLS = new HashMap<String, Call>();
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+            THREAD_KEEP_ALIVE, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "APIUtils #" + count.incrementAndGet());
+        }
+    });
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
 
     public static void userLogin(Context ctx, String username, String password, APICallback callback) {
         JSONObject data = new JSONObject();
@@ -33,15 +79,21 @@ public class APIUtils {
             data.put("device_name", Utils.getDeviceName(ctx));
         } catch (JSONException ignored) { }
 
-        new APITask(ctx, Config.LOGIN_URL, data, callback).execute();
+        new APITask(ctx, Config.LOGIN_URL, data, callback)
+                .setPriority(APITask.PRIORITY_USER)
+                .execute();
     }
 
     public static void userLogout(Context ctx, APICallback callback) {
-        new APITask(ctx, Config.LOGOUT_URL, null, callback).execute();
+        new APITask(ctx, Config.LOGOUT_URL, null, callback)
+                .setPriority(APITask.PRIORITY_USER)
+                .execute();
     }
 
     public static void redeemCode(Context ctx, APICallback callback) {
-        new APITask(ctx, Config.CODE_REDEEM_URL, null, callback).execute();
+        new APITask(ctx, Config.CODE_REDEEM_URL, null, callback)
+                .setPriority(APITask.PRIORITY_USER)
+                .execute();
     }
 
     public static void updateDeviceRegistration(Context ctx, APICallback callback) {
@@ -60,7 +112,10 @@ public class APIUtils {
         } catch (JSONException ignored) {
         }
 
-        new APITask(ctx, Config.GCM_REGISTER_URL, data, callback).execute();
+        // the biggest request body we send, the server takes it gzipped
+        new APITask(ctx, Config.GCM_REGISTER_URL, data, callback)
+                .setCompressRequest(true)
+                .execute();
 
     }
 
@@ -68,6 +123,9 @@ public class APIUtils {
         new APITask(ctx, Config.PING_URL, null, callback).execute();
     }
 
+    /**
+     * Only called when the user asks for a check, so it's sent ahead of any queued background requests.
+     */
     public static void fetchRomInfo(Context ctx, APICallback callback) {
         if (!PropUtils.isRomOtaEnabled()) {
             if (callback != null) callback.onError(ctx.getString(R.string.rom_unsupported), null);
@@ -78,12 +136,19 @@ public class APIUtils {
         try {
             data.put("device", Utils.getDevice());
             data.put("rom_id", PropUtils.getRomOtaID());
+            // lets the server offer a patch from the installed build
+            data.put("rom_version", PropUtils.getRomOtaVersion());
         } catch (JSONException ignored) {
         }
 
-        new APITask(ctx, Config.ROM_PULL_URL, data, callback).execute();
+        new APITask(ctx, Config.ROM_PULL_URL, data, callback, true)
+                .setPriority(APITask.PRIORITY_USER)
+                .execute();
     }
 
+    /**
+     * Same as {@link #fetchRomInfo}.
+     */
     public static void fetchKernelInfo(Context ctx, APICallback callback) {
         if (!PropUtils.isKernelOtaEnabled()) {
             if (callback != null) callback.onError(ctx.getString(R.string.kernel_unsupported), null);
@@ -97,86 +162,356 @@ public class APIUtils {
         } catch (JSONException ignored) {
         }
 
-        new APITask(ctx, Config.KERNEL_PULL_URL, data, callback).execute();
+        new APITask(ctx, Config.KERNEL_PULL_URL, data, callback, true)
+                .setPriority(APITask.PRIORITY_USER)
+                .execute();
     }
 
-    private static String getOAuthToken(Context ctx) {
+    /**
+     * Fetches ROM and kernel info in a single request. Each part of the response is handed to its own callback
+     * as if it came from {@link #fetchRomInfo} or {@link #fetchKernelInfo}.
+     *
+     * @param romCallback    gets the ROM info, or null to not ask for it
+     * @param kernelCallback gets the kernel info, or null to not ask for it
+     * @param callback       optional, told about the outcome after the other two. Its onSuccess gets no data
+     */
+    public static void fetchUpdateInfo(Context ctx, APICallback romCallback, APICallback kernelCallback, APICallback callback) {
+        if (!PropUtils.isRomOtaEnabled()) romCallback = null;
+        if (!PropUtils.isKernelOtaEnabled()) kernelCallback = null;
+
+        JSONObject data = new JSONObject();
         try {
-            AccountManager am = AccountManager.get(ctx);
-            Account[] accounts = am.getAccountsByType(GoogleAuthUtil.GOOGLE_ACCOUNT_TYPE);
-            if (accounts.length == 0) return "";
-            return GoogleAuthUtil.getToken(ctx, accounts[0].name, "audience:server:client_id:" + Config.OAUTH_CLIENT_ID);
-        } catch (Exception ignored) {
-//            ignored.printStackTrace();
-        }
-        return "";
+            data.put("device", Utils.getDevice());
+            if (romCallback != null) {
+                data.put("rom_id", PropUtils.getRomOtaID());
+                data.put("rom_version", PropUtils.getRomOtaVersion());
+            }
+            if (kernelCallback != null) data.put("kernel_id", PropUtils.getKernelOtaID());
+        } catch (JSONException ignored) {
+        }
+
+        new APITask(ctx, Config.INFO_PULL_URL, data, new BatchCallback(romCallback, kernelCallback, callback), true).execute();
     }
 
-    public static class APITask extends AsyncTask<Void, Void, Boolean> {
+    /**
+     * @return the client shared by all API calls, so calls made back to back reuse the same connection
+     */
+    private static synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = HttpUtils.newPooledClient(MAX_CONNECTIONS, CONNECT_TIMEOUT, SO_TIMEOUT, true);
+        }
+        return httpClient;
+    }
+
+    /**
+     * A single API request as seen by its caller. Identical requests that are queued or running at the same time
+     * share one {@link Call}, each task just gets its own callbacks.
+     */
+    public static class APITask {
+        /** for requests made in the background, e.g. pings and checkins */
+        public static final int PRIORITY_BACKGROUND = 0;
+        /** for requests the user is waiting on, these are sent before any queued background ones */
+        public static final int PRIORITY_USER = 10;
+
         private final Context ctx;
         private final String endpoint;
         private final JSONObject data;
         private final APICallback callback;
+        private final boolean conditional;
 
-        private String respMsg;
-        private JSONObject respObj;
+        private int priority = PRIORITY_BACKGROUND;
+        private boolean compressRequest = false;
+
+        private Call call = null; // guarded by CALLS
+        private boolean cancelled = false; // guarded by CALLS
+        private boolean done = false; // guarded by CALLS
 
         public APITask(Context ctx, String endpoint, JSONObject data, APICallback callback) {
+            this(ctx, endpoint, data, callback, false);
+        }
+
+        /**
+         * @param conditional true to send the ETag of the last response to the same request, and report a 304
+         *                    through {@link APICallback#onNotModified()}
+         */
+        public APITask(Context ctx, String endpoint, JSONObject data, APICallback callback, boolean conditional) {
             this.ctx = ctx;
             this.endpoint = endpoint;
             this.data = data;
             this.callback = callback;
+            this.conditional = conditional;
         }
 
-        @Override
-        protected void onPreExecute() {
+        public APITask setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /**
+         * @param compressRequest true to gzip the request body, only for endpoints that accept that
+         */
+        public APITask setCompressRequest(boolean compressRequest) {
+            this.compressRequest = compressRequest;
+            return this;
+        }
+
+        /**
+         * Queues the request. {@link APICallback#onStart} is called right away on the calling thread, all other
+         * callbacks on the main thread.
+         */
+        public APITask execute() {
             if (callback != null) callback.onStart(this);
+            enqueue(this);
+            return this;
+        }
+
+        /**
+         * Drops this task's interest in the request, its callback only gets {@link APICallback#onCancel()}. The
+         * request itself is only stopped once no other task is waiting on it.
+         *
+         * @return false if the task was already cancelled or its result was already delivered
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            HttpPost abort = null;
+            synchronized (CALLS) {
+                if (call == null || cancelled || done) return false;
+                cancelled = true;
+                call.tasks.remove(this);
+                if (call.tasks.isEmpty()) abort = call.abandon(mayInterruptIfRunning);
+            }
+            if (abort != null) abort.abort();
+
+            if (callback != null) {
+                MAIN_HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCancel();
+                    }
+                });
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            synchronized (CALLS) {
+                return cancelled;
+            }
+        }
+
+        private void onResult(Call call, boolean success) {
+            if (callback == null) return;
+
+            if (call.notModified) {
+                callback.onNotModified();
+            } else if (success && callback instanceof DataParser) {
+                @SuppressWarnings("unchecked")
+                DataParser<Object> parser = (DataParser<Object>) callback;
+                parser.onDataLoaded(call.respMsg, call.respData);
+            } else if (success) {
+                callback.onSuccess(call.respMsg, call.respObj);
+            } else {
+                callback.onError(call.respMsg, call.respObj);
+            }
+
+            callback.onComplete(success);
+        }
+    }
+
+    private static void enqueue(APITask task) {
+        // a typed callback gets the data parsed by another task's callback, so only share with the same kind
+        boolean parsed = task.callback instanceof DataParser;
+        String key = task.endpoint + '\n' + task.conditional + '\n' + parsed + '\n' + getRequestBody(task.data);
+
+        synchronized (CALLS) {
+            Call call = CALLS.get(key);
+            if (call == null) {
+                call = new Call(key, task);
+                CALLS.put(key, call);
+                call.tasks.add(task);
+                task.call = call;
+                EXECUTOR.execute(call);
+                return;
+            }
+
+            Log.v(Config.LOG_TAG + "serverCall", "joining pending request to " + task.endpoint);
+            call.tasks.add(task);
+            task.call = call;
+
+            // the queue only orders on insert, so a call that moves up has to be queued again
+            if (task.priority > call.priority && !call.started && EXECUTOR.remove(call)) {
+                call.priority = task.priority;
+                EXECUTOR.execute(call);
+            }
+        }
+    }
+
+    private static String getRequestBody(JSONObject data) {
+        return data == null ? "" : data.toString();
+    }
+
+    /**
+     * The request actually sent to the server, on behalf of every {@link APITask} waiting on it.
+     */
+    private static class Call implements Runnable, Comparable<Call> {
+        private final String key;
+        private final Context ctx;
+        private final String endpoint;
+        private final JSONObject data;
+        private final boolean conditional;
+        private final boolean compressRequest;
+        private final DataParser<?> parser;
+        private final long sequence = SEQUENCE.getAndIncrement();
+
+        private final ArrayList<APITask> tasks = new ArrayList<APITask>(1); // guarded by CALLS
+        private boolean started = false; // guarded by CALLS
+        private HttpPost request = null; // guarded by CALLS
+        private volatile int priority; // only changed while not queued
+
+        private String respMsg;
+        private JSONObject respObj;
+        private Object respData = null;
+        private String respETag = null;
+        private boolean notModified = false;
+
+        Call(String key, APITask task) {
+            this.key = key;
+            this.ctx = task.ctx;
+            this.endpoint = task.endpoint;
+            this.data = task.data;
+            this.conditional = task.conditional;
+            this.compressRequest = task.compressRequest;
+            this.parser = task.callback instanceof DataParser ? (DataParser<?>) task.callback : null;
+            this.priority = task.priority;
         }
 
         @Override
-        protected Boolean doInBackground(Void... unused) {
+        public int compareTo(Call other) {
+            if (priority != other.priority) return priority > other.priority ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+
+        /**
+         * Called once the last task waiting on the call was cancelled. Must hold the CALLS lock.
+         *
+         * @return the request to abort, if any
+         */
+        private HttpPost abandon(boolean mayInterruptIfRunning) {
+            if (CALLS.get(key) == this) CALLS.remove(key);
+            if (!started) {
+                EXECUTOR.remove(this);
+                return null;
+            }
+            return mayInterruptIfRunning ? request : null;
+        }
+
+        @Override
+        public void run() {
+            synchronized (CALLS) {
+                if (tasks.isEmpty()) return;
+                started = true;
+            }
+
+            Boolean result;
             if (!Utils.dataAvailable(ctx)) {
                 respMsg = ctx.getString(R.string.alert_nodata_title);
-                return false;
+                result = false;
+            } else {
+                result = makeServerCall();
+                if (notModified) {
+                    result = true;
+                } else if (result == null) {
+                    respMsg = ctx.getString(R.string.unknown_error);
+                    result = false;
+                }
             }
 
-            JSONObject resp = makeServerCall(endpoint, data);
-            if (resp == null || resp.length() == 0) {
-                respMsg = ctx.getString(R.string.unknown_error);
-                return false;
+            synchronized (CALLS) {
+                if (CALLS.get(key) == this) CALLS.remove(key);
+                request = null;
             }
 
-            respMsg = resp.optString("message", null);
-            respObj = resp.optJSONObject("data");
-
-            return resp.optBoolean("success", true);
+            final boolean success = result;
+            MAIN_HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(success);
+                }
+            });
         }
 
-        @Override
-        protected void onPostExecute(Boolean success) {
-            if (callback != null) {
-                if (success) {
-                    callback.onSuccess(respMsg, respObj);
-                } else {
-                    callback.onError(respMsg, respObj);
+        private void deliver(boolean success) {
+            ArrayList<APITask> waiting = new ArrayList<APITask>();
+            synchronized (CALLS) {
+                for (APITask task : tasks) {
+                    if (task.cancelled) continue;
+                    task.done = true;
+                    waiting.add(task);
                 }
+            }
+            if (waiting.isEmpty()) return;
 
-                callback.onComplete(success);
+            for (APITask task : waiting) {
+                task.onResult(this, success);
+            }
+
+            // only remembered once the response was handled, so a 304 never stands in for one that wasn't
+            if (conditional && success && !notModified) {
+                Config.getInstance(ctx).storeResponseETag(endpoint, getRequestBody(data), respETag);
             }
         }
 
-        @Override
-        protected void onCancelled(Boolean aVoid) {
-            if (callback != null) callback.onCancel();
+        private Boolean readResponse(JsonReader reader) throws IOException {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                Log.w(Config.LOG_TAG + "serverCall", "malformed response to " + endpoint);
+                return null;
+            }
+
+            Boolean success = null;
+            String error = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("success")) {
+                    success = JsonUtils.readBoolean(reader, true);
+                } else if (name.equals("message")) {
+                    respMsg = JsonUtils.readString(reader);
+                } else if (name.equals("error")) {
+                    error = JsonUtils.readString(reader);
+                } else if (name.equals("data")) {
+                    if (parser != null) {
+                        // typed callbacks read their data themselves, no tree gets built
+                        respData = parser.parseData(reader);
+                    } else {
+                        respObj = JsonUtils.readObject(reader);
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if (success == null) {
+                Log.w(Config.LOG_TAG + "serverCall", "malformed response to " + endpoint);
+                return null;
+            }
+            if (!success) {
+                Log.w(Config.LOG_TAG + "serverCall", "error received from " + endpoint + " (" + (error == null ? "unknown" : error) + ")");
+            }
+            return success;
         }
 
-        public JSONObject makeServerCall(String endpoint, JSONObject data) {
+        /**
+         * @return whether the server reported success, or null if there was no usable response
+         */
+        private Boolean makeServerCall() {
             Log.v(Config.LOG_TAG + "serverCall", endpoint);
 
+            HttpEntity e = null;
             try {
-                HttpClient http = new DefaultHttpClient();
+                HttpClient http = getHttpClient();
 
-                String reqBody = data == null ? "" : data.toString();
+                String reqBody = getRequestBody(data);
                 String hmacSig = UserUtils.userHmac(ctx, reqBody);
 
                 HttpPost req = new HttpPost(Config.SITE_BASE_URL + endpoint);
@@ -185,48 +520,64 @@ public class APIUtils {
                 req.addHeader("Accept", "application/json");
 
                 if (hmacSig != null) req.addHeader("X-Authorization-Signature", hmacSig);
-                req.addHeader("X-API-Authentication", getOAuthToken(ctx));
+                req.addHeader("X-API-Authentication", OAuthTokenCache.get(ctx));
                 req.addHeader("X-Device-ID", Utils.getDeviceID(ctx));
 
-                req.setEntity(new StringEntity(reqBody, "UTF-8"));
+                if (conditional) {
+                    String etag = Config.getInstance(ctx).getResponseETag(endpoint, reqBody);
+                    if (etag != null) req.addHeader("If-None-Match", etag);
+                }
+
+                // the signature is over the uncompressed body
+                req.setEntity(compressRequest ? HttpUtils.newCompressedEntity(reqBody) : new StringEntity(reqBody, "UTF-8"));
+
+                synchronized (CALLS) {
+                    // everyone gave up while the token was being fetched
+                    if (tasks.isEmpty()) return null;
+                    request = req;
+                }
 
                 HttpResponse resp = http.execute(req);
 
                 int status = resp.getStatusLine().getStatusCode();
+                if (conditional && status == HttpStatus.SC_NOT_MODIFIED) {
+                    Log.v(Config.LOG_TAG + "serverCall", "not modified: " + endpoint);
+                    notModified = true;
+                    return null;
+                }
+                if (status == HttpStatus.SC_UNAUTHORIZED) {
+                    // don't keep sending a token the server doesn't take
+                    OAuthTokenCache.invalidate(ctx);
+                }
                 if (status != HttpStatus.SC_OK) {
                     Log.w(Config.LOG_TAG + "serverCall", "non-200 response to " + endpoint + " (" + status + ")");
+                } else if (conditional) {
+                    Header etag = resp.getFirstHeader("ETag");
+                    respETag = etag == null ? null : etag.getValue();
                 }
 
-                HttpEntity e = resp.getEntity();
+                e = resp.getEntity();
                 if (e == null) {
                     Log.w(Config.LOG_TAG + "serverCall", "no response to " + endpoint);
                     return null;
                 }
 
-                String respBody = EntityUtils.toString(e);
-                if (respBody.length() == 0) {
-                    Log.w(Config.LOG_TAG + "serverCall", "empty response to " + endpoint);
-                    return null;
-                }
-
-                JSONObject json = new JSONObject(respBody);
-                if (json.length() == 0) {
-                    Log.w(Config.LOG_TAG + "serverCall", "empty response to " + endpoint);
-                    return null;
+                // read straight off the wire, and unpacked on the way if it's compressed, the body is never held as a whole
+                String charset = EntityUtils.getContentCharSet(e);
+                JsonReader reader = new JsonReader(new InputStreamReader(e.getContent(), charset == null ? "UTF-8" : charset));
+                try {
+                    return readResponse(reader);
+                } finally {
+                    reader.close();
                 }
-
-                if (!json.has("success")) {
-                    Log.w(Config.LOG_TAG + "serverCall", "malformed response to " + endpoint);
-                    return null;
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            } finally {
+                // hands the connection back to the pool if the body wasn't read to the end
+                if (e != null) {
+                    try { e.consumeContent(); }
+                    catch (IOException ignored) { }
                 }
-
-                if (!json.getBoolean("success")) {
-                    Log.w(Config.LOG_TAG + "serverCall", "error received from " + endpoint + " (" + json.optString("error", "unknown") + ")");
-                }
-
-                return json;
-            } catch (Exception e) {
-                e.printStackTrace();
             }
 
             return null;
@@ -265,10 +616,131 @@ public class APIUtils {
         }
     }
 
+    /**
+     * Splits a combined info response between the ROM and kernel callbacks.
+     */
+    private static class BatchCallback implements APICallback, DataParser<Object[]> {
+        private final APICallback romCallback;
+        private final APICallback kernelCallback;
+        private final APICallback callback;
+
+        BatchCallback(APICallback romCallback, APICallback kernelCallback, APICallback callback) {
+            this.romCallback = romCallback;
+            this.kernelCallback = kernelCallback;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onStart(APITask task) {
+            if (romCallback != null) romCallback.onStart(task);
+            if (kernelCallback != null) kernelCallback.onStart(task);
+            if (callback != null) callback.onStart(task);
+        }
+
+        @Override
+        public Object[] parseData(JsonReader reader) throws IOException {
+            Object[] parts = new Object[2];
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                return parts;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (key.equals(RomInfo.KEY_NAME) && romCallback != null) {
+                    parts[0] = parsePart(romCallback, reader);
+                } else if (key.equals(KernelInfo.KEY_NAME) && kernelCallback != null) {
+                    parts[1] = parsePart(kernelCallback, reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return parts;
+        }
+
+        private static Object parsePart(APICallback callback, JsonReader reader) throws IOException {
+            if (callback instanceof DataParser) return ((DataParser<?>) callback).parseData(reader);
+            return JsonUtils.readObject(reader);
+        }
+
+        @Override
+        public void onDataLoaded(String message, Object[] parts) {
+            if (parts == null) parts = new Object[2];
+            if (romCallback != null) dispatchPart(romCallback, message, parts[0]);
+            if (kernelCallback != null) dispatchPart(kernelCallback, message, parts[1]);
+            if (callback != null) callback.onSuccess(message, null);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static void dispatchPart(APICallback callback, String message, Object part) {
+            if (callback instanceof DataParser) {
+                ((DataParser<Object>) callback).onDataLoaded(message, part);
+            } else {
+                callback.onSuccess(message, (JSONObject) part);
+            }
+        }
+
+        @Override
+        public void onSuccess(String message, JSONObject respObj) {
+            if (romCallback != null) romCallback.onSuccess(message, respObj == null ? null : respObj.optJSONObject(RomInfo.KEY_NAME));
+            if (kernelCallback != null) kernelCallback.onSuccess(message, respObj == null ? null : respObj.optJSONObject(KernelInfo.KEY_NAME));
+            if (callback != null) callback.onSuccess(message, respObj);
+        }
+
+        @Override
+        public void onError(String message, JSONObject respObj) {
+            if (romCallback != null) romCallback.onError(message, respObj);
+            if (kernelCallback != null) kernelCallback.onError(message, respObj);
+            if (callback != null) callback.onError(message, respObj);
+        }
+
+        @Override
+        public void onNotModified() {
+            if (romCallback != null) romCallback.onNotModified();
+            if (kernelCallback != null) kernelCallback.onNotModified();
+            if (callback != null) callback.onNotModified();
+        }
+
+        @Override
+        public void onCancel() {
+            if (romCallback != null) romCallback.onCancel();
+            if (kernelCallback != null) kernelCallback.onCancel();
+            if (callback != null) callback.onCancel();
+        }
+
+        @Override
+        public void onComplete(boolean success) {
+            if (romCallback != null) romCallback.onComplete(success);
+            if (kernelCallback != null) kernelCallback.onComplete(success);
+            if (callback != null) callback.onComplete(success);
+        }
+    }
+
+    /**
+     * Implemented by callbacks that can read the response's "data" value straight from the stream, instead of
+     * being handed an org.json tree of it.
+     */
+    public static interface DataParser<T> {
+        /**
+         * Reads the "data" value, on the background thread. Must consume exactly that one value.
+         */
+        public T parseData(JsonReader reader) throws IOException;
+
+        /**
+         * Called instead of {@link APICallback#onSuccess} with whatever {@link #parseData} returned, null if the
+         * response had no data.
+         */
+        public void onDataLoaded(String message, T data);
+    }
+
     public static interface APICallback {
         public void onStart(APITask task);
         public void onSuccess(String message, JSONObject respObj);
         public void onError(String message, JSONObject respObj);
+        /** called instead of onSuccess when a conditional request's response didn't change since last time */
+        public void onNotModified();
         public void onCancel();
         public void onComplete(boolean success);
     }
@@ -277,6 +749,7 @@ public class APIUtils {
         @Override public void onStart(APITask task) { }
         @Override public void onSuccess(String message, JSONObject respObj) { }
         @Override public void onError(String message, JSONObject respObj) { }
+        @Override public void onNotModified() { }
         @Override public void onCancel() { }
         @Override public void onComplete(boolean success) { }
     }
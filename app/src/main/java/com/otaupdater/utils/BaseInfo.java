@@ -13,6 +13,8 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.v4.app.NotificationCompat;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import com.otaupdater.DownloadBarFragment;
@@ -20,10 +22,15 @@ import com.otaupdater.DownloadReceiver;
 import com.otaupdater.OTAUpdaterActivity;
 import com.otaupdater.R;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 
 public abstract class BaseInfo implements Parcelable, Serializable {
@@ -35,6 +42,9 @@ public abstract class BaseInfo implements Parcelable, Serializable {
     public static final String KEY_URL = "url";
     public static final String KEY_MD5 = "md5";
     public static final String KEY_DATE = "date";
+    public static final String KEY_MIRRORS = "mirrors";
+    public static final String KEY_DELTA = "delta";
+    public static final String KEY_DELTA_DOWNLOAD = "delta_download";
 
     public String name;
     public String version;
@@ -42,6 +52,11 @@ public abstract class BaseInfo implements Parcelable, Serializable {
     public String url;
     public String md5;
     public Date date;
+    public String[] mirrors;
+    public DeltaInfo delta;
+
+    /** whether the current download is {@link #delta}'s patch rather than the full zip */
+    public boolean deltaDownload = false;
 
     protected BaseInfo() {
     }
@@ -62,6 +77,8 @@ public abstract class BaseInfo implements Parcelable, Serializable {
         i.putExtra(KEY_URL, url);
         i.putExtra(KEY_MD5, md5);
         i.putExtra(KEY_DATE, Utils.formatDate(date));
+        i.putExtra(KEY_MIRRORS, mirrors);
+        i.putExtra(KEY_DELTA, DeltaInfo.toString(delta));
     }
 
     public void putToSharedPrefs(SharedPreferences.Editor editor) {
@@ -71,6 +88,9 @@ public abstract class BaseInfo implements Parcelable, Serializable {
         editor.putString(getNameKey() + "_info_" + KEY_URL, url);
         editor.putString(getNameKey() + "_info_" + KEY_MD5, md5);
         editor.putString(getNameKey() + "_info_" + KEY_DATE, Utils.formatDate(date));
+        editor.putString(getNameKey() + "_info_" + KEY_MIRRORS, mirrors == null ? null : new JSONArray(Arrays.asList(mirrors)).toString());
+        editor.putString(getNameKey() + "_info_" + KEY_DELTA, DeltaInfo.toString(delta));
+        editor.putBoolean(getNameKey() + "_info_" + KEY_DELTA_DOWNLOAD, deltaDownload);
     }
 
     @Override
@@ -86,6 +106,8 @@ public abstract class BaseInfo implements Parcelable, Serializable {
         dest.writeString(url);
         dest.writeString(md5);
         dest.writeLong(date.getTime());
+        dest.writeStringArray(mirrors);
+        dest.writeString(DeltaInfo.toString(delta));
     }
 
     public boolean isUpdate() {
@@ -135,12 +157,37 @@ public abstract class BaseInfo implements Parcelable, Serializable {
     }
 
     public long startDownload(Context ctx) {
+        return startDownload(ctx, Config.getInstance(ctx).getParallelDl());
+    }
+
+    /**
+     * @param inApp true to download with {@link SegmentedDownload} rather than DownloadManager
+     */
+    public long startDownload(Context ctx, boolean inApp) {
         Config cfg = Config.getInstance(ctx);
 
-        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(url));
+        deltaDownload = canUseDelta();
+        cfg.storeUpdate(this);
+        if (deltaDownload) {
+            Log.v(Config.LOG_TAG + "Download", "downloading patch from " + delta.baseVersion + " to " + version);
+            // left over from an earlier attempt, would make DownloadManager pick another name
+            //noinspection ResultOfMethodCallIgnored
+            if (!SegmentedDownload.hasPartial(getDeltaPatchFile())) getDeltaPatchFile().delete();
+        }
+
+        // an earlier in-app attempt left progress behind, DownloadManager would start over
+        if (inApp || SegmentedDownload.hasPartial(getTransferFile())) {
+            long downloadID = SegmentedDownload.start(ctx, this);
+            cfg.storeDownloadID(this, downloadID);
+            DownloadBarFragment.notifyActiveFragment();
+            clearUpdateNotif(ctx);
+            return downloadID;
+        }
+
+        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(getTransferUrls()[0]));
         request.addRequestHeader("User-Agent", Config.HTTPC_UA);
         request.setTitle(ctx.getString(getDownloadingNotifTitle()));
-        request.setDestinationUri(getDownloadFileUri());
+        request.setDestinationUri(Uri.parse("file://" + getTransferFile().getAbsolutePath()));
         request.setAllowedOverRoaming(false);
         request.setVisibleInDownloadsUi(false);
 
@@ -155,6 +202,8 @@ public abstract class BaseInfo implements Parcelable, Serializable {
         DownloadManager dm = (DownloadManager) ctx.getSystemService(Context.DOWNLOAD_SERVICE);
         long downloadID = dm.enqueue(request);
         cfg.storeDownloadID(this, downloadID);
+        // a patch gets checked by the result of applying it, nothing to hash along the way
+        if (!deltaDownload) DownloadHasher.track(ctx, downloadID, getDownloadFile());
         DownloadBarFragment.notifyActiveFragment();
         clearUpdateNotif(ctx);
 
@@ -173,11 +222,69 @@ public abstract class BaseInfo implements Parcelable, Serializable {
         return new File(getDownloadPathFile(), getDownloadFileName());
     }
 
-    public int checkDownloadedFile() {
-        File file = getDownloadFile();
-        if (!file.exists()) return DownloadManager.ERROR_FILE_ERROR;
-        if (!Utils.md5(file).equalsIgnoreCase(md5)) return DownloadStatus.ERROR_MD5_MISMATCH;
-        return 0;
+    public DownloadVerifier getVerifier() {
+        if (deltaDownload) {
+            return DownloadVerifier.forFile(getDownloadFile(), md5, getDeltaBaseFile(), getDeltaPatchFile());
+        }
+        return DownloadVerifier.forFile(getDownloadFile(), md5);
+    }
+
+    /**
+     * @return the zip of the build {@link #delta} patches from, or null if there is no patch
+     */
+    public File getDeltaBaseFile() {
+        if (delta == null) return null;
+        return new File(getDownloadPathFile(), Utils.sanitizeName(name) + "__" + Utils.sanitizeName(delta.baseVersion) + ".zip");
+    }
+
+    public File getDeltaPatchFile() {
+        return new File(getDownloadPathFile(), getDownloadFileName() + ".patch");
+    }
+
+    /**
+     * @return true if the server offered a patch from the installed build and its zip is still around. The
+     *         base is only checked against its MD5 here if that's cached, otherwise a bad base shows up when
+     *         the patched file doesn't verify
+     */
+    public boolean canUseDelta() {
+        if (delta == null) return false;
+
+        String propVersion = getPropVersion();
+        if (propVersion == null || !propVersion.equalsIgnoreCase(delta.baseVersion)) return false;
+
+        File base = getDeltaBaseFile();
+        if (!base.isFile()) return false;
+
+        String baseMd5 = Md5Cache.get(base);
+        return baseMd5 == null || baseMd5.equalsIgnoreCase(delta.baseMd5);
+    }
+
+    /**
+     * @return where the current download is written: the patch for delta downloads, the zip otherwise
+     */
+    public File getTransferFile() {
+        return deltaDownload ? getDeltaPatchFile() : getDownloadFile();
+    }
+
+    /**
+     * @return the URLs to fetch {@link #getTransferFile()} from. Patches don't have mirrors
+     */
+    public String[] getTransferUrls() {
+        return deltaDownload ? new String[] { delta.url } : getDownloadUrls();
+    }
+
+    /**
+     * @return the main URL followed by any mirrors
+     */
+    public String[] getDownloadUrls() {
+        ArrayList<String> urls = new ArrayList<String>();
+        urls.add(url);
+        if (mirrors != null) {
+            for (String mirror : mirrors) {
+                if (mirror != null && mirror.length() != 0 && !urls.contains(mirror)) urls.add(mirror);
+            }
+        }
+        return urls.toArray(new String[urls.size()]);
     }
 
     public Uri getDownloadFileUri() {
@@ -300,6 +407,8 @@ public abstract class BaseInfo implements Parcelable, Serializable {
 
     protected abstract int getNotifID();
 
+    protected abstract int getDownloadNotifID();
+
     protected abstract int getDownloadingNotifTitle();
 
     protected abstract int getDownloadDialogMessageStr();
@@ -330,6 +439,11 @@ public abstract class BaseInfo implements Parcelable, Serializable {
                 info.md5 = json.getString(KEY_MD5);
                 info.date = Utils.parseDate(json.getString(KEY_DATE));
 
+                JSONArray mirrors = json.optJSONArray(KEY_MIRRORS);
+                if (mirrors != null) info.mirrors = parseMirrors(mirrors);
+
+                info.delta = DeltaInfo.fromJSON(json.optJSONObject(KEY_DELTA));
+
                 return info;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -338,6 +452,66 @@ public abstract class BaseInfo implements Parcelable, Serializable {
             return null;
         }
 
+        /**
+         * Same as {@link #fromJSON(JSONObject)}, reading the object straight from a response stream without
+         * building a tree for it.
+         */
+        public T fromReader(JsonReader reader) throws IOException {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                return null;
+            }
+
+            T info;
+            try {
+                info = CLASS.newInstance();
+            } catch (Exception e) {
+                e.printStackTrace();
+                reader.skipValue();
+                return null;
+            }
+
+            String nameKey = info.getNameKey();
+            String dateStr = null;
+            boolean empty = true;
+            boolean error = false;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                empty = false;
+                if (key.equals(nameKey)) {
+                    info.name = JsonUtils.readString(reader);
+                } else if (key.equals(KEY_VERSION)) {
+                    info.version = JsonUtils.readString(reader);
+                } else if (key.equals(KEY_CHANGELOG)) {
+                    info.changelog = JsonUtils.readString(reader);
+                } else if (key.equals(KEY_URL)) {
+                    info.url = JsonUtils.readString(reader);
+                } else if (key.equals(KEY_MD5)) {
+                    info.md5 = JsonUtils.readString(reader);
+                } else if (key.equals(KEY_DATE)) {
+                    dateStr = JsonUtils.readString(reader);
+                } else if (key.equals(KEY_MIRRORS)) {
+                    info.mirrors = JsonUtils.readStringArray(reader);
+                } else if (key.equals(KEY_DELTA)) {
+                    info.delta = DeltaInfo.fromReader(reader);
+                } else {
+                    if (key.equals("error")) error = true;
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            // same rules as fromJSON, everything but mirrors and delta is required
+            if (empty || error) return null;
+            if (info.name == null || info.version == null || info.changelog == null || info.url == null ||
+                    info.md5 == null || dateStr == null) return null;
+            info.date = Utils.parseDate(dateStr);
+
+            return info;
+        }
+
         public T fromBundle(Bundle bundle) {
             if (bundle == null || bundle.isEmpty()) return null;
 
@@ -350,6 +524,8 @@ public abstract class BaseInfo implements Parcelable, Serializable {
                 info.url = bundle.getString(KEY_URL);
                 info.md5 = bundle.getString(KEY_MD5);
                 info.date = Utils.parseDate(bundle.getString(KEY_DATE));
+                info.mirrors = bundle.getStringArray(KEY_MIRRORS);
+                info.delta = DeltaInfo.fromString(bundle.getString(KEY_DELTA));
 
                 return info;
             } catch (Exception e) {
@@ -374,6 +550,12 @@ public abstract class BaseInfo implements Parcelable, Serializable {
                 info.md5 = prefs.getString(info.getNameKey() + "_info_" + KEY_MD5, null);
                 info.date = Utils.parseDate(prefs.getString(info.getNameKey() + "_info_" + KEY_DATE, null));
 
+                String mirrors = prefs.getString(info.getNameKey() + "_info_" + KEY_MIRRORS, null);
+                if (mirrors != null) info.mirrors = parseMirrors(new JSONArray(mirrors));
+
+                info.delta = DeltaInfo.fromString(prefs.getString(info.getNameKey() + "_info_" + KEY_DELTA, null));
+                info.deltaDownload = info.delta != null && prefs.getBoolean(info.getNameKey() + "_info_" + KEY_DELTA_DOWNLOAD, false);
+
                 return info;
             } catch (Exception e) {
                 e.printStackTrace();
@@ -382,6 +564,14 @@ public abstract class BaseInfo implements Parcelable, Serializable {
             return null;
         }
 
+        private static String[] parseMirrors(JSONArray json) throws JSONException {
+            String[] mirrors = new String[json.length()];
+            for (int q = 0; q < mirrors.length; q++) {
+                mirrors[q] = json.getString(q);
+            }
+            return mirrors;
+        }
+
         public Creator<T> getParcelableCreator() {
             return new Creator<T>() {
                 @Override
@@ -401,6 +591,8 @@ public abstract class BaseInfo implements Parcelable, Serializable {
                         info.url = source.readString();
                         info.md5 = source.readString();
                         info.date = new Date(source.readLong());
+                        info.mirrors = source.createStringArray();
+                        info.delta = DeltaInfo.fromString(source.readString());
 
                         return info;
                     } catch (Exception e) {
@@ -430,13 +622,16 @@ public abstract class BaseInfo implements Parcelable, Serializable {
                 editor.remove(info.getNameKey() + "_info_" + KEY_URL);
                 editor.remove(info.getNameKey() + "_info_" + KEY_MD5);
                 editor.remove(info.getNameKey() + "_info_" + KEY_DATE);
+                editor.remove(info.getNameKey() + "_info_" + KEY_MIRRORS);
+                editor.remove(info.getNameKey() + "_info_" + KEY_DELTA);
+                editor.remove(info.getNameKey() + "_info_" + KEY_DELTA_DOWNLOAD);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
     }
 
-    public static abstract class InfoLoadAdapter<T extends BaseInfo> extends APIUtils.APIAdapter {
+    public static abstract class InfoLoadAdapter<T extends BaseInfo> extends APIUtils.APIAdapter implements APIUtils.DataParser<T> {
         private final Class<T> CLASS;
         private final Context ctx;
         private final Config cfg;
@@ -449,12 +644,30 @@ public abstract class BaseInfo implements Parcelable, Serializable {
 
         public abstract void onInfoLoaded(T info);
 
+        @Override
+        public T parseData(JsonReader reader) throws IOException {
+            return new InfoFactory<T>(CLASS).fromReader(reader);
+        }
+
+        @Override
+        public void onDataLoaded(String message, T info) {
+            handleInfo(info);
+        }
+
         @Override
         public void onSuccess(String message, JSONObject respObj) {
-            InfoFactory<T> factory = new InfoFactory<T>(CLASS);
-            T info = factory.fromJSON(respObj);
+            handleInfo(new InfoFactory<T>(CLASS).fromJSON(respObj));
+        }
 
+        private void handleInfo(T info) {
             if (info != null && info.isUpdate()) {
+                // a patch that's already downloading for this build has to be finished as one
+                BaseInfo stored = info instanceof RomInfo ? cfg.getStoredRomUpdate() : cfg.getStoredKernelUpdate();
+                if (stored != null && stored.deltaDownload && info.getDownloadFile().equals(stored.getDownloadFile())) {
+                    info.delta = stored.delta;
+                    info.deltaDownload = true;
+                }
+
                 cfg.storeUpdate(info);
                 if (cfg.getShowNotif()) {
                     info.showUpdateNotif(ctx);
@@ -463,7 +676,25 @@ public abstract class BaseInfo implements Parcelable, Serializable {
                 }
             } else {
                 cfg.clearStoredUpdate(CLASS);
-                factory.clearUpdateNotif(ctx);
+                new InfoFactory<T>(CLASS).clearUpdateNotif(ctx);
+            }
+
+            onInfoLoaded(info);
+        }
+
+        @Override
+        public void onNotModified() {
+            // same answer as last time, which is whatever is stored
+            @SuppressWarnings("unchecked")
+            T info = (T) (CLASS.equals(RomInfo.class) ? cfg.getStoredRomUpdate() : cfg.getStoredKernelUpdate());
+
+            if (info != null && !info.isUpdate()) {
+                // installed since it was stored
+                cfg.clearStoredUpdate(CLASS);
+                new InfoFactory<T>(CLASS).clearUpdateNotif(ctx);
+                info = null;
+            } else if (info != null && cfg.getShowNotif()) {
+                info.showUpdateNotif(ctx);
             }
 
             onInfoLoaded(info);
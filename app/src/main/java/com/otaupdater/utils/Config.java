@@ -40,6 +40,7 @@ public class Config {
     public static final String PING_URL = "device/ping";
     public static final String ROM_PULL_URL = "device/info/rom";
     public static final String KERNEL_PULL_URL = "device/info/kernel";
+    public static final String INFO_PULL_URL = "device/info";
 
     public static final String ADMOB_UNIT_ID = "ca-app-pub-0361534644858126/7580389175";
 
@@ -55,10 +56,12 @@ public class Config {
     public static final int ROM_NOTIF_ID = 100;
     public static final int ROM_FAILED_NOTIF_ID = 101;
     public static final int ROM_FLASH_NOTIF_ID = 102;
+    public static final int ROM_DL_NOTIF_ID = 103;
 
     public static final int KERNEL_NOTIF_ID = 200;
     public static final int KERNEL_FAILED_NOTIF_ID = 201;
     public static final int KERNEL_FLASH_NOTIF_ID = 202;
+    public static final int KERNEL_DL_NOTIF_ID = 203;
 
     public static final int AD_SHOW_DELAY = 3000;
 
@@ -85,6 +88,7 @@ public class Config {
     private String gcmRegistrationId = null;
     private boolean gcmRegVersionOverride = false;
     private Date lastPingDate = null;
+    private int checkinRetries = 0;
 
     private String keyPurchaseToken = null;
     private String redeemCode = null;
@@ -92,6 +96,7 @@ public class Config {
     private boolean showNotif = true;
     private boolean wifiOnlyDl = true;
     private boolean autoDl = false;
+    private boolean parallelDl = false;
 
     private boolean ignoredUnsupportedWarn = false;
     private boolean ignoredDataWarn = false;
@@ -126,6 +131,7 @@ public class Config {
 
         gcmRegistrationId = PREFS.getString("gcmRegistrationId", gcmRegistrationId);
         lastPingDate = PREFS.contains("lastPingDate") ? new Date(PREFS.getLong("lastPingDate", 0)) : null;
+        checkinRetries = PREFS.getInt("checkinRetries", checkinRetries);
 
         keyPurchaseToken = PREFS.getString("keyState", keyPurchaseToken);
         redeemCode = PREFS.getString("redeemCode", redeemCode);
@@ -136,6 +142,7 @@ public class Config {
         showNotif = PREFS.getBoolean("showNotif", showNotif);
         wifiOnlyDl = PREFS.getBoolean("wifiOnlyDl", wifiOnlyDl);
         autoDl = PREFS.getBoolean("autoDl", autoDl);
+        parallelDl = PREFS.getBoolean("parallelDl", parallelDl);
 
         ignoredUnsupportedWarn = PREFS.getBoolean("ignoredUnsupportedWarn", ignoredUnsupportedWarn);
         ignoredDataWarn = PREFS.getBoolean("ignoredDataWarn", ignoredDataWarn);
@@ -253,6 +260,15 @@ public class Config {
         putBoolean("autoDl", autoDl);
     }
 
+    public boolean getParallelDl() {
+        return parallelDl;
+    }
+
+    public void setParallelDl(boolean parallelDl) {
+        this.parallelDl = parallelDl;
+        putBoolean("parallelDl", parallelDl);
+    }
+
     public void clearIgnored() {
         ignoredUnsupportedWarn = false;
         ignoredDataWarn = false;
@@ -305,6 +321,18 @@ public class Config {
         }
     }
 
+    /**
+     * Makes the next checkin send the registration again, for when the last one didn't go through.
+     */
+    public void clearValuesCurrent() {
+        lastDevice = null;
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.remove("device");
+            editor.apply();
+        }
+    }
+
     public boolean upToDate() {
         if (lastDevice == null) return false;
 
@@ -334,6 +362,18 @@ public class Config {
         putLong("lastPingDate", lastPingDate.getTime());
     }
 
+    /**
+     * @return how many retries were scheduled since the last regular checkin
+     */
+    public int getCheckinRetries() {
+        return checkinRetries;
+    }
+
+    public void setCheckinRetries(int retries) {
+        checkinRetries = retries;
+        putInt("checkinRetries", retries);
+    }
+
     public boolean hasStoredRomUpdate() {
         return storedRomUpdate != null;
     }
@@ -356,6 +396,9 @@ public class Config {
         synchronized (PREFS) {
             SharedPreferences.Editor editor = PREFS.edit();
             RomInfo.FACTORY.clearFromSharedPrefs(editor);
+            // a 304 to the next pull would otherwise stand for the update that was just dropped
+            removeResponseETag(editor, ROM_PULL_URL);
+            removeResponseETag(editor, INFO_PULL_URL);
             editor.apply();
         }
     }
@@ -382,6 +425,8 @@ public class Config {
         synchronized (PREFS) {
             SharedPreferences.Editor editor = PREFS.edit();
             KernelInfo.FACTORY.clearFromSharedPrefs(editor);
+            removeResponseETag(editor, KERNEL_PULL_URL);
+            removeResponseETag(editor, INFO_PULL_URL);
             editor.apply();
         }
     }
@@ -480,6 +525,39 @@ public class Config {
         }
     }
 
+    /**
+     * @return the ETag of the last response from the endpoint, or null if there is none or it was for a
+     *         different request body
+     */
+    public String getResponseETag(String endpoint, String reqBody) {
+        synchronized (PREFS) {
+            String etag = PREFS.getString("etag_" + endpoint, null);
+            if (etag == null || !Utils.md5(reqBody).equals(PREFS.getString("etag_" + endpoint + "_req", null))) return null;
+            return etag;
+        }
+    }
+
+    /**
+     * @param etag the ETag of the response, or null to forget the stored one
+     */
+    public void storeResponseETag(String endpoint, String reqBody, String etag) {
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            if (etag == null) {
+                removeResponseETag(editor, endpoint);
+            } else {
+                editor.putString("etag_" + endpoint, etag);
+                editor.putString("etag_" + endpoint + "_req", Utils.md5(reqBody));
+            }
+            editor.apply();
+        }
+    }
+
+    private static void removeResponseETag(SharedPreferences.Editor editor, String endpoint) {
+        editor.remove("etag_" + endpoint);
+        editor.remove("etag_" + endpoint + "_req");
+    }
+
     private void putBoolean(String name, boolean value) {
         synchronized (PREFS) {
             SharedPreferences.Editor editor = PREFS.edit();
@@ -488,6 +566,14 @@ public class Config {
         }
     }
 
+    private void putInt(String name, int value) {
+        synchronized (PREFS) {
+            SharedPreferences.Editor editor = PREFS.edit();
+            editor.putInt(name, value);
+            editor.apply();
+        }
+    }
+
     private void putLong(String name, long value) {
         synchronized (PREFS) {
             SharedPreferences.Editor editor = PREFS.edit();
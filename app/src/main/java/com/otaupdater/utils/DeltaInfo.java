@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A patch offered by the server that turns the zip of the installed build into the zip of the update. See
+ * {@link DeltaPatcher} for the format.
+ */
+public class DeltaInfo implements Serializable {
+    private static final long serialVersionUID = -2950873146381957502L;
+
+    public static final String KEY_URL = "url";
+    public static final String KEY_MD5 = "md5";
+    public static final String KEY_BASE_VERSION = "base_version";
+    public static final String KEY_BASE_MD5 = "base_md5";
+
+    public final String url;
+    public final String md5;
+    public final String baseVersion;
+    public final String baseMd5;
+
+    public DeltaInfo(String url, String md5, String baseVersion, String baseMd5) {
+        this.url = url;
+        this.md5 = md5;
+        this.baseVersion = baseVersion;
+        this.baseMd5 = baseMd5;
+    }
+
+    /**
+     * @return the patch described by the object, or null if there is none or it's incomplete
+     */
+    public static DeltaInfo fromJSON(JSONObject json) {
+        if (json == null) return null;
+
+        String url = json.optString(KEY_URL, null);
+        String baseVersion = json.optString(KEY_BASE_VERSION, null);
+        String baseMd5 = json.optString(KEY_BASE_MD5, null);
+        if (url == null || url.length() == 0 || baseVersion == null || baseMd5 == null) return null;
+
+        return new DeltaInfo(url, json.optString(KEY_MD5, null), baseVersion, baseMd5);
+    }
+
+    /**
+     * Same as {@link #fromJSON(JSONObject)}, reading the object straight from a response stream.
+     */
+    public static DeltaInfo fromReader(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+
+        String url = null;
+        String md5 = null;
+        String baseVersion = null;
+        String baseMd5 = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals(KEY_URL)) {
+                url = JsonUtils.readString(reader);
+            } else if (key.equals(KEY_MD5)) {
+                md5 = JsonUtils.readString(reader);
+            } else if (key.equals(KEY_BASE_VERSION)) {
+                baseVersion = JsonUtils.readString(reader);
+            } else if (key.equals(KEY_BASE_MD5)) {
+                baseMd5 = JsonUtils.readString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (url == null || url.length() == 0 || baseVersion == null || baseMd5 == null) return null;
+        return new DeltaInfo(url, md5, baseVersion, baseMd5);
+    }
+
+    /**
+     * Parses the output of {@link #toString()}, null-safe.
+     */
+    public static DeltaInfo fromString(String str) {
+        if (str == null) return null;
+        try {
+            return fromJSON(new JSONObject(str));
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public static String toString(DeltaInfo delta) {
+        return delta == null ? null : delta.toString();
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put(KEY_URL, url);
+            json.put(KEY_MD5, md5);
+            json.put(KEY_BASE_VERSION, baseVersion);
+            json.put(KEY_BASE_MD5, baseMd5);
+        } catch (JSONException ignored) {
+        }
+        return json;
+    }
+
+    @Override
+    public String toString() {
+        return toJSON().toString();
+    }
+}
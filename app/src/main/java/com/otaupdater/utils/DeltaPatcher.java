@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Applies a bsdiff patch to an old zip, streaming both the patch and the new file so neither has to fit in
+ * memory. The layout is the single-stream one from bsdiff 4.3, with gzip in place of bzip2:
+ *
+ * <pre>
+ * magic    "OTAUPDATER/BSDGZ" (16 bytes)
+ * newSize  offtin (8 bytes)
+ * gzip stream of records until newSize bytes are written:
+ *     diffLen, extraLen, seek  offtin (8 bytes each)
+ *     diffLen bytes            added bytewise to the old file at the current old position
+ *     extraLen bytes           copied as-is
+ * </pre>
+ *
+ * Numbers are bsdiff's offtin: 63 bits of magnitude little-endian with the sign in the top bit.
+ */
+public class DeltaPatcher {
+    private static final byte[] MAGIC = new byte[] {
+            'O', 'T', 'A', 'U', 'P', 'D', 'A', 'T', 'E', 'R', '/', 'B', 'S', 'D', 'G', 'Z'
+    };
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final long PROGRESS_STEP = 1048576; // 1mb
+
+    public interface ProgressListener {
+        public void onProgress(long written, long total);
+    }
+
+    private DeltaPatcher() { }
+
+    /**
+     * Writes the patched file to {@code out}, replacing it if it exists.
+     *
+     * @return the MD5 of the written file
+     * @throws IOException if a file can't be read or written or the patch is corrupt
+     */
+    public static String apply(File old, File patch, File out, ProgressListener listener) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("no md5");
+        }
+
+        RandomAccessFile oldFile = null;
+        InputStream patchIn = null;
+        OutputStream newOut = null;
+        try {
+            oldFile = new RandomAccessFile(old, "r");
+            long oldSize = oldFile.length();
+
+            patchIn = new BufferedInputStream(new FileInputStream(patch), BUFFER_SIZE);
+            byte[] header = new byte[MAGIC.length + 8];
+            readFully(patchIn, header, header.length);
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) throw new IOException("not a patch");
+            long newSize = offtin(header, MAGIC.length);
+            if (newSize < 0) throw new IOException("corrupt patch");
+
+            DataInputStream body = new DataInputStream(new GZIPInputStream(patchIn, BUFFER_SIZE));
+            newOut = new BufferedOutputStream(new FileOutputStream(out), BUFFER_SIZE);
+
+            byte[] ctrl = new byte[24];
+            byte[] buf = new byte[BUFFER_SIZE];
+            byte[] oldBuf = new byte[BUFFER_SIZE];
+            long newPos = 0;
+            long oldPos = 0;
+            long nextProgress = 0;
+
+            while (newPos < newSize) {
+                body.readFully(ctrl);
+                long diffLen = offtin(ctrl, 0);
+                long extraLen = offtin(ctrl, 8);
+                long seek = offtin(ctrl, 16);
+                if (diffLen < 0 || extraLen < 0 || newPos + diffLen + extraLen > newSize) {
+                    throw new IOException("corrupt patch");
+                }
+
+                for (long done = 0; done < diffLen; ) {
+                    int len = (int) Math.min(BUFFER_SIZE, diffLen - done);
+                    body.readFully(buf, 0, len);
+
+                    // bsdiff lets the old position run off either end, those bytes have nothing added
+                    long from = Math.max(oldPos, 0);
+                    long to = Math.min(oldPos + len, oldSize);
+                    if (from < to) {
+                        int skip = (int) (from - oldPos);
+                        oldFile.seek(from);
+                        oldFile.readFully(oldBuf, 0, (int) (to - from));
+                        for (int q = 0; q < to - from; q++) {
+                            buf[skip + q] += oldBuf[q];
+                        }
+                    }
+
+                    digest.update(buf, 0, len);
+                    newOut.write(buf, 0, len);
+                    done += len;
+                    oldPos += len;
+                }
+                newPos += diffLen;
+
+                for (long done = 0; done < extraLen; ) {
+                    int len = (int) Math.min(BUFFER_SIZE, extraLen - done);
+                    body.readFully(buf, 0, len);
+                    digest.update(buf, 0, len);
+                    newOut.write(buf, 0, len);
+                    done += len;
+                }
+                newPos += extraLen;
+                oldPos += seek;
+
+                if (listener != null && newPos >= nextProgress) {
+                    listener.onProgress(newPos, newSize);
+                    nextProgress = newPos + PROGRESS_STEP;
+                }
+            }
+
+            newOut.close();
+            newOut = null;
+            return Utils.byteArrToStr(digest.digest());
+        } catch (EOFException e) {
+            throw new IOException("truncated patch");
+        } finally {
+            if (oldFile != null) {
+                try { oldFile.close(); }
+                catch (IOException ignored) { }
+            }
+            if (patchIn != null) {
+                try { patchIn.close(); }
+                catch (IOException ignored) { }
+            }
+            if (newOut != null) {
+                try { newOut.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int n = in.read(buf, read, len - read);
+            if (n == -1) throw new EOFException();
+            read += n;
+        }
+    }
+
+    private static long offtin(byte[] buf, int off) {
+        long y = buf[off + 7] & 0x7F;
+        for (int q = 6; q >= 0; q--) {
+            y = (y << 8) | (buf[off + q] & 0xFF);
+        }
+        return (buf[off + 7] & 0x80) != 0 ? -y : y;
+    }
+}
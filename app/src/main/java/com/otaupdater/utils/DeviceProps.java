@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.annotation.SuppressLint;
+import android.os.Environment;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable snapshot of all the device props PropUtils hands out. A snapshot is built once by {@link #load()}
+ * and never changes afterwards, so it can be shared between threads freely.
+ */
+public class DeviceProps {
+    // from AOSP source: packages/apps/Settings/src/com/android/settings/DeviceInfoSettings.java
+    private static final String PROC_VERSION_REGEX =
+            "\\w+\\s+" + /* ignore: Linux */
+            "\\w+\\s+" + /* ignore: version */
+            "([^\\s]+)\\s+" + /* group 1: 2.6.22-omap1 */
+            "\\(([^\\s@]+@[^\\s@]+)\\)+\\s+" + /* group 2: (xxxxxx@xxxxx.constant) */
+            // "(gcc" followed by anything up to two consecutive ")"
+            // separated by only white space (which seems to be the norm)
+            "\\(gcc.*\\)\\s+" +
+            "([^\\s]+)\\s+" + /* group 3: #26 */
+            "(?:SMP\\s+)?" + /* ignore: SMP (optional) */
+            "(?:PREEMPT\\s+)?" + /* ignore: PREEMPT (optional) */
+            "(.+)"; /* group 4: date */
+
+    public final Rom rom;
+    public final Kernel kernel;
+    public final General general;
+    public final String kernelUname;
+
+    private DeviceProps(Rom rom, Kernel kernel, General general, String kernelUname) {
+        this.rom = rom;
+        this.kernel = kernel;
+        this.general = general;
+        this.kernelUname = kernelUname;
+    }
+
+    /**
+     * Reads all props. It's only a handful of small files, so they are read one after the other on the calling
+     * thread, which normally is PropUtils' background load.
+     */
+    public static DeviceProps load() {
+        return new DeviceProps(new Rom(), new Kernel(), new General(), readKernelUname());
+    }
+
+    private static String readKernelUname() {
+        String procVersion = PropUtils.getFullKernelVersion();
+        if (procVersion == null) return null;
+
+        Pattern p = Pattern.compile(PROC_VERSION_REGEX);
+        Matcher m = p.matcher(procVersion);
+
+        if (!m.matches() || m.groupCount() < 4) return null;
+
+        return (new StringBuilder(m.group(1)).append("\n").append(
+                m.group(2)).append(" ").append(m.group(3)).append("\n")
+                .append(m.group(4))).toString();
+    }
+
+    public static class Rom {
+        public final boolean otaEnabled;
+        public final String otaID;
+        public final String otaVersion;
+        public final Date otaDate;
+
+        private Rom() {
+            otaEnabled = new File(PropUtils.ROM_OTA_PROP).exists() || LegacyCompat.isRomOtaEnabled();
+
+            String id = null;
+            String version = null;
+            Date date = null;
+
+            if (otaEnabled) {
+                JSONObject romOtaProp = PropFile.get(PropUtils.ROM_OTA_PROP).getJSON();
+                if (romOtaProp != null) {
+                    try {
+                        id = romOtaProp.getString("otaid");
+                        version = romOtaProp.getString("otaver");
+                        date = Utils.parseDate(romOtaProp.getString("otatime"));
+                    } catch (JSONException e) {
+                        Log.e(Config.LOG_TAG + "ReadOTAProp", "Error in rom.ota.prop file!");
+                    }
+                }
+
+                if (id == null) id = LegacyCompat.getRomOtaID();
+                if (version == null) version = LegacyCompat.getRomOtaVersion();
+                if (date == null) date = LegacyCompat.getRomOtaDate();
+            }
+
+            otaID = id;
+            otaVersion = version;
+            otaDate = date;
+        }
+    }
+
+    public static class Kernel {
+        public final boolean otaEnabled;
+        public final String otaID;
+        public final String otaVersion;
+        public final Date otaDate;
+        public final String fullOtaVersion;
+
+        private Kernel() {
+            String id = null;
+            String version = null;
+            Date date = null;
+            String fullVersion = null;
+
+            JSONObject kernelOtaProp = new File(PropUtils.KERNEL_OTA_PROP).exists() ?
+                    PropFile.get(PropUtils.KERNEL_OTA_PROP).getJSON() : null;
+            if (kernelOtaProp != null) {
+                try {
+                    id = kernelOtaProp.getString("otaid");
+                    version = kernelOtaProp.getString("otaver");
+                    date = Utils.parseDate(kernelOtaProp.getString("otatime"));
+                    fullVersion = kernelOtaProp.getString("fullver");
+                } catch (JSONException e) {
+                    Log.e(Config.LOG_TAG + "ReadOTAProp", "Error in kernel.ota.prop file!");
+                }
+            }
+
+            // the prop file is only valid for the kernel it shipped with
+            String runningVersion = PropUtils.getFullKernelVersion();
+            otaEnabled = kernelOtaProp != null && runningVersion != null && runningVersion.equals(fullVersion);
+            //TODO maybe try to delete the file if it doesn't match?
+
+            otaID = otaEnabled ? id : null;
+            otaVersion = otaEnabled ? version : null;
+            otaDate = otaEnabled ? date : null;
+            fullOtaVersion = otaEnabled ? fullVersion : null;
+        }
+    }
+
+    public static class General {
+        public final boolean noFlash;
+        public final String rebootCmd;
+        public final String systemSdPath;
+        public final String recoverySdPath;
+
+        private General() {
+            Boolean noflash = null;
+            String reboot = null;
+            String systemPath = null;
+            String recoveryPath = null;
+
+            if (new File(PropUtils.GEN_OTA_PROP).exists()) {
+                JSONObject genOtaProp = PropFile.get(PropUtils.GEN_OTA_PROP).getJSON();
+                if (genOtaProp == null) {
+                    Log.e(Config.LOG_TAG + "ReadOTAProp", "Error in ota.prop file!");
+                } else {
+                    noflash = genOtaProp.optBoolean("noflash", false);
+                    reboot = genOtaProp.optString("rebootcmd", null);
+                    systemPath = genOtaProp.optString("system_sdpath", null);
+                    recoveryPath = genOtaProp.optString("recovery_sdpath", null);
+                }
+            } else {
+                noflash = LegacyCompat.getNoflash();
+                reboot = LegacyCompat.getRebootCmd();
+                systemPath = LegacyCompat.getSystemSdPath();
+                recoveryPath = LegacyCompat.getRecoverySdPath();
+            }
+
+            noFlash = noflash != null && noflash;
+            rebootCmd = reboot == null ? "reboot recovery" : reboot;
+            systemSdPath = systemPath == null ? Environment.getExternalStorageDirectory().getAbsolutePath() : systemPath;
+            recoverySdPath = recoveryPath == null ? PropUtils.getDefaultRecoverySdPath() : recoveryPath;
+        }
+    }
+
+    private static class LegacyCompat {
+        public static final String OTA_ID_PROP = "otaupdater.otaid";
+        public static final String OTA_VER_PROP = "otaupdater.otaver";
+        public static final String OTA_DATE_PROP = "otaupdater.otatime";
+        public static final String OTA_REBOOT_CMD_PROP = "otaupdater.rebootcmd";
+        public static final String OTA_NOFLASH_PROP = "otaupdater.noflash";
+        public static final String OTA_SYSTEM_SD_PATH_PROP = "otaupdater.sdcard.os";
+        public static final String OTA_RECOVERY_SD_PATH_PROP = "otaupdater.sdcard.recovery";
+
+        public static boolean isRomOtaEnabled() {
+            String romID = getRomOtaID();
+            return romID != null && romID.isEmpty();
+        }
+
+        public static String getRomOtaID() {
+            return SystemProps.get(OTA_ID_PROP);
+        }
+
+        public static Date getRomOtaDate() {
+            return Utils.parseDate(SystemProps.get(OTA_DATE_PROP));
+        }
+
+        public static String getRomOtaVersion() {
+            return SystemProps.get(OTA_VER_PROP);
+        }
+
+        public static String getRebootCmd() {
+            return SystemProps.get(OTA_REBOOT_CMD_PROP);
+        }
+
+        public static Boolean getNoflash() {
+            String noflash = SystemProps.get(OTA_NOFLASH_PROP);
+            if (noflash == null) return null;
+            return noflash.equals("1") || noflash.equalsIgnoreCase("true");
+        }
+
+        @SuppressLint("SdCardPath")
+        public static String getSystemSdPath() {
+            return SystemProps.get(OTA_SYSTEM_SD_PATH_PROP);
+        }
+
+        @SuppressLint("SdCardPath")
+        public static String getRecoverySdPath() {
+            return SystemProps.get(OTA_RECOVERY_SD_PATH_PROP);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the MD5 of a file while DownloadManager is still writing it, so that only the last few bytes are
+ * left to hash when the download completes instead of the whole file.
+ */
+public class DownloadHasher {
+    private static final long POLL_INTERVAL = 2000; // ms
+
+    private static final HashMap<File, DownloadHasher> HASHERS = new HashMap<File, DownloadHasher>();
+    private static ScheduledExecutorService executor = null;
+
+    private final long downloadID;
+    private final File file;
+    private final DownloadManager dm;
+    private final MessageDigest digest;
+
+    private long hashedBytes = 0;
+    private String result = null;
+    private ScheduledFuture<?> pollFuture = null;
+
+    private DownloadHasher(Context ctx, long downloadID, File file) throws NoSuchAlgorithmException {
+        this.downloadID = downloadID;
+        this.file = file;
+        this.dm = (DownloadManager) ctx.getSystemService(Context.DOWNLOAD_SERVICE);
+        this.digest = MessageDigest.getInstance("MD5");
+    }
+
+    /**
+     * Starts following the given download in the background. Does nothing if the file is already being followed.
+     */
+    public static synchronized void track(Context ctx, long downloadID, File file) {
+        if (downloadID <= 0 || HASHERS.containsKey(file)) return;
+
+        final DownloadHasher hasher;
+        try {
+            hasher = new DownloadHasher(ctx.getApplicationContext(), downloadID, file);
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (executor == null) executor = Executors.newSingleThreadScheduledExecutor();
+        HASHERS.put(file, hasher);
+        hasher.pollFuture = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                hasher.poll();
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        Log.v(Config.LOG_TAG + "DownloadHasher", "following " + file.getName());
+    }
+
+    /**
+     * Hashes whatever is left of a followed file and stops following it.
+     *
+     * @return the MD5 of the file, or null if it wasn't being followed
+     */
+    public static String finish(File file) {
+        DownloadHasher hasher;
+        synchronized (DownloadHasher.class) {
+            hasher = HASHERS.remove(file);
+        }
+        if (hasher == null) return null;
+
+        hasher.stop();
+        return hasher.complete();
+    }
+
+    private static synchronized void untrack(DownloadHasher hasher) {
+        if (HASHERS.get(hasher.file) == hasher) HASHERS.remove(hasher.file);
+        hasher.stop();
+    }
+
+    private void poll() {
+        int status;
+        long downloaded;
+
+        Cursor c = dm.query(new DownloadManager.Query().setFilterById(downloadID));
+        if (c == null) return;
+        try {
+            if (!c.moveToFirst()) {
+                // download was removed
+                untrack(this);
+                return;
+            }
+            status = c.getInt(c.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS));
+            downloaded = c.getLong(c.getColumnIndexOrThrow(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+        } finally {
+            c.close();
+        }
+
+        switch (status) {
+        case DownloadManager.STATUS_PENDING:
+        case DownloadManager.STATUS_RUNNING:
+        case DownloadManager.STATUS_PAUSED:
+            hashUpTo(downloaded);
+            break;
+        case DownloadManager.STATUS_SUCCESSFUL:
+            // keep the digest around for finish(), there's nothing more to follow
+            hashUpTo(file.length());
+            stop();
+            break;
+        default:
+            untrack(this);
+            break;
+        }
+    }
+
+    private synchronized void hashUpTo(long target) {
+        if (result != null) return;
+
+        long length = file.length();
+        if (length < hashedBytes) {
+            // file was truncated, download started over
+            digest.reset();
+            hashedBytes = 0;
+        }
+
+        target = Math.min(target, length);
+        if (target <= hashedBytes) return;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            Utils.updateDigest(digest, in.getChannel(), hashedBytes, target);
+            hashedBytes = target;
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "DownloadHasher", "error hashing " + file.getName() + ": " + e.getMessage());
+            digest.reset();
+            hashedBytes = 0;
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private synchronized String complete() {
+        if (result == null) {
+            hashUpTo(file.length());
+            if (hashedBytes != file.length()) return null;
+            result = Utils.byteArrToStr(digest.digest());
+        }
+        return result;
+    }
+
+    private synchronized void stop() {
+        if (pollFuture != null) {
+            pollFuture.cancel(false);
+            pollFuture = null;
+        }
+    }
+}
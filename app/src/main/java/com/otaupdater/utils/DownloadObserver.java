@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+/**
+ * Runs a refresh on the main thread whenever DownloadManager's provider reports a change, instead of polling
+ * on a timer. Bursts of changes are coalesced into a single refresh, and refreshes are never run closer
+ * together than one display frame. Nothing runs while no download changes, e.g. while paused or queued
+ * for Wi-Fi.
+ */
+public class DownloadObserver extends ContentObserver {
+    // DownloadProvider notifies this URI (and its children) on every insert/update/delete
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+
+    private static final long MIN_REFRESH_INTERVAL = 16; // ms, one frame at 60fps
+    private static final long POLL_INTERVAL = 500; // ms, only while the listener asks for it
+
+    // observers that are started, only touched on the main thread
+    private static final ArrayList<DownloadObserver> ACTIVE = new ArrayList<DownloadObserver>();
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private final Context ctx;
+    private final Handler handler;
+    private final RefreshListener listener;
+
+    private boolean registered = false;
+    private boolean pending = false;
+    private long lastRefresh = 0;
+
+    private final Runnable runRefresh = new Runnable() {
+        @Override
+        public void run() {
+            pending = false;
+            lastRefresh = SystemClock.uptimeMillis();
+            if (listener.onRefresh() && registered && !pending) {
+                pending = true;
+                handler.postDelayed(runRefresh, POLL_INTERVAL);
+            }
+        }
+    };
+
+    public interface RefreshListener {
+        /**
+         * Called on the main thread after each (coalesced) change.
+         *
+         * @return true to be refreshed again shortly even if nothing changes in the provider, for state that
+         *         DownloadManager doesn't know about (like verification progress)
+         */
+        public boolean onRefresh();
+    }
+
+    public DownloadObserver(Context ctx, RefreshListener listener) {
+        this(ctx, MAIN_HANDLER, listener);
+    }
+
+    private DownloadObserver(Context ctx, Handler handler, RefreshListener listener) {
+        super(handler);
+        this.ctx = ctx.getApplicationContext();
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /**
+     * Starts listening for changes and refreshes once right away.
+     */
+    public void start() {
+        if (!registered) {
+            ctx.getContentResolver().registerContentObserver(DOWNLOADS_URI, true, this);
+            ACTIVE.add(this);
+            registered = true;
+        }
+        requestRefresh();
+    }
+
+    public void stop() {
+        if (registered) {
+            ctx.getContentResolver().unregisterContentObserver(this);
+            ACTIVE.remove(this);
+            registered = false;
+        }
+        handler.removeCallbacks(runRefresh);
+        pending = false;
+    }
+
+    /**
+     * Refreshes all started observers, for downloads that don't go through DownloadManager's provider.
+     * Can be called from any thread.
+     */
+    public static void notifyChanged() {
+        MAIN_HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DownloadObserver observer : new ArrayList<DownloadObserver>(ACTIVE)) {
+                    observer.requestRefresh();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        requestRefresh();
+    }
+
+    private void requestRefresh() {
+        if (pending) {
+            // a change shouldn't wait behind a poll, pull it forward
+            handler.removeCallbacks(runRefresh);
+        }
+        pending = true;
+
+        long wait = lastRefresh + MIN_REFRESH_INTERVAL - SystemClock.uptimeMillis();
+        handler.postDelayed(runRefresh, Math.max(0, wait));
+    }
+}
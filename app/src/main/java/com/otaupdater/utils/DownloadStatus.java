@@ -8,6 +8,7 @@ import com.otaupdater.R;
 
 public class DownloadStatus {
     public static final int ERROR_MD5_MISMATCH = 900;
+    public static final int ERROR_DELTA_FAILED = 901;
 
     public static final int SCALE_KBYTES = 1024;
     public static final int KBYTE_THRESH = 920; //0.9kb
@@ -25,6 +26,10 @@ public class DownloadStatus {
     protected int totalBytes;
     protected int downloadedBytes;
 
+    protected int verifyState = DownloadVerifier.STATE_PENDING;
+    protected int verifyProgress = 0;
+    protected boolean patching = false;
+
     protected BaseInfo info = null;
 
     protected DownloadStatus(long id) {
@@ -36,36 +41,46 @@ public class DownloadStatus {
     }
 
     public static DownloadStatus forDownloadID(Context ctx, DownloadManager dm, long id) {
-        if (id > 0) {
-            Cursor c = dm.query(new DownloadManager.Query().setFilterById(id));
-            if (c != null) {
-                try {
-                    if (c.moveToFirst()) {
-                        DownloadStatus status = new DownloadStatus(id);
-
-                        status.status = c.getInt(c.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS));
-                        status.reason = c.getInt(c.getColumnIndexOrThrow(DownloadManager.COLUMN_REASON));
-                        status.totalBytes = c.getInt(c.getColumnIndexOrThrow(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-                        status.downloadedBytes = c.getInt(c.getColumnIndexOrThrow(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-
-                        Config cfg = Config.getInstance(ctx);
-                        if (cfg.isDownloadingRom() && cfg.getRomDownloadID() == id) {
-                            status.info = cfg.getStoredRomUpdate();
-                        } else if (cfg.isDownloadingKernel() && cfg.getKernelDownloadID() == id) {
-                            status.info = cfg.getStoredKernelUpdate();
-                        }
-
-                        status.checkDownloadedFile();
-
-                        return status;
-                    }
-                } finally {
-                    c.close();
-                }
-            }
+        return DownloadTracker.query(ctx, dm, id).get(id);
+    }
+
+    static DownloadStatus fromSegmented(SegmentedDownload download) {
+        DownloadStatus status = new DownloadStatus(download.getId());
+
+        status.status = download.getStatus();
+        status.reason = download.getReason();
+        status.totalBytes = (int) download.getTotalBytes();
+        status.downloadedBytes = (int) download.getDownloadedBytes();
+        status.info = download.getInfo();
+
+        status.applyVerifierState();
+
+        return status;
+    }
+
+    static DownloadStatus fromCursor(Context ctx, Config cfg, Cursor c, int[] cols) {
+        long id = c.getLong(cols[DownloadTracker.COL_ID]);
+        DownloadStatus status = new DownloadStatus(id);
+
+        status.status = c.getInt(cols[DownloadTracker.COL_STATUS]);
+        status.reason = c.getInt(cols[DownloadTracker.COL_REASON]);
+        status.totalBytes = c.getInt(cols[DownloadTracker.COL_TOTAL_BYTES]);
+        status.downloadedBytes = c.getInt(cols[DownloadTracker.COL_DOWNLOADED_BYTES]);
+
+        if (cfg.isDownloadingRom() && cfg.getRomDownloadID() == id) {
+            status.info = cfg.getStoredRomUpdate();
+        } else if (cfg.isDownloadingKernel() && cfg.getKernelDownloadID() == id) {
+            status.info = cfg.getStoredKernelUpdate();
         }
 
-        return null;
+        // picks the download back up if the process was restarted mid-download
+        if (status.info != null && !status.info.deltaDownload && (status.status == DownloadManager.STATUS_RUNNING || status.status == DownloadManager.STATUS_PAUSED)) {
+            DownloadHasher.track(ctx, id, status.info.getDownloadFile());
+        }
+
+        status.applyVerifierState();
+
+        return status;
     }
 
     public long getId() {
@@ -80,19 +95,63 @@ public class DownloadStatus {
         return status;
     }
 
+    /**
+     * @return true once the download finished and the file was verified
+     */
     public boolean isSuccessful() {
-        return status == DownloadManager.STATUS_SUCCESSFUL;
+        return status == DownloadManager.STATUS_SUCCESSFUL && verifyState == DownloadVerifier.STATE_VERIFIED;
+    }
+
+    /**
+     * @return true if the download finished but the file is still being checked
+     */
+    public boolean isVerifying() {
+        return status == DownloadManager.STATUS_SUCCESSFUL &&
+                (verifyState == DownloadVerifier.STATE_PENDING || verifyState == DownloadVerifier.STATE_VERIFYING);
+    }
+
+    public int getVerifyProgress() {
+        return verifyProgress;
+    }
+
+    /**
+     * @return true while verifying if a delta patch is still being applied
+     */
+    public boolean isPatching() {
+        return patching;
     }
 
-    public void checkDownloadedFile() {
+    /**
+     * @return true if the download was a delta patch that couldn't be applied, and the full zip has to be
+     *         downloaded instead
+     */
+    public boolean needsFullDownload() {
+        return !isSuccessful() && reason == ERROR_DELTA_FAILED;
+    }
+
+    private void applyVerifierState() {
         if (status != DownloadManager.STATUS_SUCCESSFUL) return;
-        if (info == null) return;
+        if (info == null) {
+            // not one of ours, nothing to check it against
+            verifyState = DownloadVerifier.STATE_VERIFIED;
+            return;
+        }
+        applyVerifierState(info.getVerifier());
+    }
 
-        int error = info.checkDownloadedFile();
-        if (error == 0) return;
+    void applyVerifierState(DownloadVerifier verifier) {
+        if (status != DownloadManager.STATUS_SUCCESSFUL) return;
 
-        status = DownloadManager.STATUS_FAILED;
-        reason = error;
+        // only kicks off the check, the refresh loop picks up the result on a later pass
+        verifier.start();
+        verifyState = verifier.getState();
+        verifyProgress = verifier.getProgress();
+        patching = verifier.isPatching();
+
+        if (verifyState == DownloadVerifier.STATE_FAILED) {
+            status = DownloadManager.STATUS_FAILED;
+            reason = verifier.getError();
+        }
     }
 
     public int getReason() {
@@ -176,6 +235,9 @@ public class DownloadStatus {
         case DownloadStatus.ERROR_MD5_MISMATCH:
             statusTextRes = R.string.downloads_failed_md5;
             break;
+        case DownloadStatus.ERROR_DELTA_FAILED:
+            statusTextRes = R.string.downloads_failed_delta;
+            break;
         default:
             statusTextRes = R.string.downloads_no_status;
         }
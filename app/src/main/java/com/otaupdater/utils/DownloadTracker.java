@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.database.Cursor;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Looks up the status of all downloads we care about with a single DownloadManager query and hands out the
+ * result as an immutable {@link Snapshot}.
+ */
+public class DownloadTracker {
+    static final int COL_ID = 0;
+    static final int COL_STATUS = 1;
+    static final int COL_REASON = 2;
+    static final int COL_TOTAL_BYTES = 3;
+    static final int COL_DOWNLOADED_BYTES = 4;
+
+    private static final String[] COLUMN_NAMES = new String[] {
+            DownloadManager.COLUMN_ID,
+            DownloadManager.COLUMN_STATUS,
+            DownloadManager.COLUMN_REASON,
+            DownloadManager.COLUMN_TOTAL_SIZE_BYTES,
+            DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR,
+    };
+
+    // DownloadManager always returns the same fixed set of columns, so the indices only need looking up once
+    private static int[] columns = null;
+
+    private DownloadTracker() { }
+
+    /**
+     * Queries the ROM and kernel downloads stored in {@link Config}, plus any extra IDs given.
+     */
+    public static Snapshot queryTracked(Context ctx, long... extraIDs) {
+        Config cfg = Config.getInstance(ctx);
+
+        long[] ids = new long[extraIDs.length + 2];
+        ids[0] = cfg.getRomDownloadID();
+        ids[1] = cfg.getKernelDownloadID();
+        System.arraycopy(extraIDs, 0, ids, 2, extraIDs.length);
+
+        return query(ctx, (DownloadManager) ctx.getSystemService(Context.DOWNLOAD_SERVICE), ids);
+    }
+
+    /**
+     * Stops and deletes a download, whichever engine it belongs to.
+     */
+    public static void remove(Context ctx, long id) {
+        if (SegmentedDownload.isSegmentedID(id)) {
+            SegmentedDownload.remove(ctx, id);
+        } else if (id > 0) {
+            ((DownloadManager) ctx.getSystemService(Context.DOWNLOAD_SERVICE)).remove(id);
+        }
+    }
+
+    /**
+     * Queries exactly the given downloads. Invalid IDs and duplicates are skipped.
+     */
+    public static Snapshot query(Context ctx, DownloadManager dm, long... ids) {
+        HashMap<Long, DownloadStatus> statuses = new HashMap<Long, DownloadStatus>();
+
+        long[] filter = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            if (SegmentedDownload.isSegmentedID(id)) {
+                // in-app downloads don't go through the provider
+                SegmentedDownload download = SegmentedDownload.get(ctx, id);
+                if (download != null) statuses.put(id, DownloadStatus.fromSegmented(download));
+                continue;
+            }
+            if (id <= 0) continue;
+            boolean dupe = false;
+            for (int q = 0; q < count; q++) {
+                if (filter[q] == id) {
+                    dupe = true;
+                    break;
+                }
+            }
+            if (!dupe) filter[count++] = id;
+        }
+        if (count == 0) return statuses.isEmpty() ? Snapshot.EMPTY : new Snapshot(statuses);
+        if (count != filter.length) {
+            long[] trimmed = new long[count];
+            System.arraycopy(filter, 0, trimmed, 0, count);
+            filter = trimmed;
+        }
+
+        Cursor c = dm.query(new DownloadManager.Query().setFilterById(filter));
+        if (c == null) return new Snapshot(statuses);
+
+        try {
+            int[] cols = getColumns(c);
+            Config cfg = Config.getInstance(ctx);
+            while (c.moveToNext()) {
+                DownloadStatus status = DownloadStatus.fromCursor(ctx, cfg, c, cols);
+                statuses.put(status.getId(), status);
+            }
+        } finally {
+            c.close();
+        }
+        return new Snapshot(statuses);
+    }
+
+    private static synchronized int[] getColumns(Cursor c) {
+        if (columns == null) {
+            int[] cols = new int[COLUMN_NAMES.length];
+            for (int q = 0; q < cols.length; q++) {
+                cols[q] = c.getColumnIndexOrThrow(COLUMN_NAMES[q]);
+            }
+            columns = cols;
+        }
+        return columns;
+    }
+
+    public static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new HashMap<Long, DownloadStatus>());
+
+        private final Map<Long, DownloadStatus> statuses;
+
+        private Snapshot(Map<Long, DownloadStatus> statuses) {
+            this.statuses = Collections.unmodifiableMap(statuses);
+        }
+
+        /**
+         * @return the status of the download, or null if it wasn't part of the query or doesn't exist anymore
+         */
+        public DownloadStatus get(long id) {
+            return statuses.get(id);
+        }
+    }
+}
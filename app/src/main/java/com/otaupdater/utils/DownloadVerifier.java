@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Verifies a downloaded file against its expected MD5 in the background. Each file has one verifier that goes
+ * {@link #STATE_PENDING} -> {@link #STATE_VERIFYING} -> {@link #STATE_VERIFIED} or {@link #STATE_FAILED}, and
+ * goes back to pending if the file changes afterwards. For delta updates the patch is applied as part of
+ * verifying, and the file only exists once that's done.
+ */
+public class DownloadVerifier {
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_VERIFYING = 1;
+    public static final int STATE_VERIFIED = 2;
+    public static final int STATE_FAILED = 3;
+
+    private static final long PROGRESS_CHUNK = 16777216; // 16mb
+
+    private static final HashMap<File, DownloadVerifier> VERIFIERS = new HashMap<File, DownloadVerifier>();
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final File file;
+    private final String md5;
+    private final File deltaBase;
+    private final File deltaPatch;
+
+    private int state = STATE_PENDING;
+    private int error = 0;
+    private int progress = 0;
+    private boolean patching = false;
+    private long verifiedSize = -1;
+    private long verifiedModified = -1;
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+    public interface Listener {
+        /**
+         * Called on the verifier thread once verification is done.
+         *
+         * @param error 0 if the file is valid, otherwise a DownloadManager/DownloadStatus error reason
+         */
+        public void onVerified(int error);
+    }
+
+    private DownloadVerifier(File file, String md5, File deltaBase, File deltaPatch) {
+        this.file = file;
+        this.md5 = md5;
+        this.deltaBase = deltaBase;
+        this.deltaPatch = deltaPatch;
+    }
+
+    public static DownloadVerifier forFile(File file, String md5) {
+        return forFile(file, md5, null, null);
+    }
+
+    /**
+     * Same as {@link #forFile(File, String)}, but builds the file from a downloaded delta patch first if the
+     * patch is still there.
+     */
+    public static synchronized DownloadVerifier forFile(File file, String md5, File deltaBase, File deltaPatch) {
+        DownloadVerifier verifier = VERIFIERS.get(file);
+        if (verifier == null || !verifier.md5.equalsIgnoreCase(md5) ||
+                !sameFile(verifier.deltaBase, deltaBase) || !sameFile(verifier.deltaPatch, deltaPatch)) {
+            verifier = new DownloadVerifier(file, md5, deltaBase, deltaPatch);
+            VERIFIERS.put(file, verifier);
+        }
+        return verifier;
+    }
+
+    private static boolean sameFile(File a, File b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Starts verification in the background if it isn't running or done already. Never blocks.
+     */
+    public void start() {
+        start(null);
+    }
+
+    /**
+     * Same as {@link #start()}, and calls the listener when the result is known (right away if it already is).
+     */
+    public void start(Listener listener) {
+        int doneError;
+        synchronized (this) {
+            checkFileChanged();
+            if (state == STATE_VERIFIED || state == STATE_FAILED) {
+                doneError = error;
+            } else {
+                if (listener != null) listeners.add(listener);
+                if (state == STATE_PENDING) {
+                    state = STATE_VERIFYING;
+                    progress = 0;
+                    EXECUTOR.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            verify();
+                        }
+                    });
+                }
+                return;
+            }
+        }
+        if (listener != null) listener.onVerified(doneError);
+    }
+
+    public synchronized int getState() {
+        checkFileChanged();
+        return state;
+    }
+
+    /**
+     * @return 0 unless the state is {@link #STATE_FAILED}
+     */
+    public synchronized int getError() {
+        return error;
+    }
+
+    /**
+     * @return verification progress in percent while {@link #STATE_VERIFYING}
+     */
+    public synchronized int getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return true while a delta patch is being applied, the progress is for that until it's done
+     */
+    public synchronized boolean isPatching() {
+        return patching;
+    }
+
+    private void checkFileChanged() {
+        if ((state == STATE_VERIFIED || state == STATE_FAILED) &&
+                (file.length() != verifiedSize || file.lastModified() != verifiedModified)) {
+            state = STATE_PENDING;
+            error = 0;
+        }
+    }
+
+    private void verify() {
+        int result = check();
+
+        ArrayList<Listener> toNotify;
+        synchronized (this) {
+            state = result == 0 ? STATE_VERIFIED : STATE_FAILED;
+            error = result;
+            progress = 100;
+            toNotify = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+
+        for (Listener listener : toNotify) {
+            listener.onVerified(result);
+        }
+    }
+
+    private int check() {
+        int patchError = 0;
+        if (deltaPatch != null && deltaPatch.exists()) patchError = applyPatch();
+
+        // recorded for a failed patch too, which deletes the file. a file that changed afterwards would otherwise
+        // send the verifier back to pending, and the missing file would be reported as a plain file error
+        synchronized (this) {
+            verifiedSize = file.length();
+            verifiedModified = file.lastModified();
+        }
+        if (patchError != 0) return patchError;
+        if (!file.exists()) return DownloadManager.ERROR_FILE_ERROR;
+
+        // hashed while downloading, only the tail is left to read
+        String digest = DownloadHasher.finish(file);
+        if (digest != null && digest.equalsIgnoreCase(md5)) {
+            Md5Cache.put(file, digest);
+            return 0;
+        }
+
+        // not followed, or something rewrote already-hashed bytes. check the whole file to be sure
+        digest = Md5Cache.get(file);
+        if (digest == null) digest = hashWithProgress();
+        if (digest == null) return DownloadManager.ERROR_FILE_ERROR;
+
+        return digest.equalsIgnoreCase(md5) ? 0 : DownloadStatus.ERROR_MD5_MISMATCH;
+    }
+
+    private int applyPatch() {
+        synchronized (this) {
+            patching = true;
+        }
+        try {
+            String digest = DeltaPatcher.apply(deltaBase, deltaPatch, file, new DeltaPatcher.ProgressListener() {
+                @Override
+                public void onProgress(long written, long total) {
+                    synchronized (DownloadVerifier.this) {
+                        progress = total <= 0 ? 0 : (int) (100 * written / total);
+                    }
+                }
+            });
+
+            // the MD5 of what was written is the only check needed, a bad patch or base can't produce a match
+            if (digest.equalsIgnoreCase(md5)) {
+                Md5Cache.put(file, digest);
+                //noinspection ResultOfMethodCallIgnored
+                deltaPatch.delete();
+                return 0;
+            }
+            Log.w(Config.LOG_TAG + "Verify", "patched " + file.getName() + " doesn't match, base or patch is bad");
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "Verify", "error patching " + file.getName() + ": " + e.getMessage());
+        } finally {
+            synchronized (this) {
+                patching = false;
+                progress = 0;
+            }
+        }
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        deltaPatch.delete();
+        return DownloadStatus.ERROR_DELTA_FAILED;
+    }
+
+    private String hashWithProgress() {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            long size = in.getChannel().size();
+
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (long pos = 0; pos < size; pos += PROGRESS_CHUNK) {
+                Utils.updateDigest(digest, in.getChannel(), pos, Math.min(pos + PROGRESS_CHUNK, size));
+                synchronized (this) {
+                    progress = (int) (100 * Math.min(pos + PROGRESS_CHUNK, size) / size);
+                }
+            }
+
+            String md5 = Utils.byteArrToStr(digest.digest());
+            Md5Cache.put(file, md5);
+            return md5;
+        } catch (Exception e) {
+            Log.w(Config.LOG_TAG + "Verify", "error hashing " + file.getName() + ": " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Builds the long-lived HTTP clients the app shares between threads. Each client pools its connections and
+ * keeps them alive between requests, so back-to-back calls to the same host skip the TCP and TLS handshakes.
+ */
+public class HttpUtils {
+    // used when the server doesn't say how long it keeps idle connections open
+    private static final long DEFAULT_KEEP_ALIVE = 30000;
+
+    private HttpUtils() { }
+
+    /**
+     * @param maxConnections how many connections the pool holds, in total and per host
+     * @param gzip           whether to ask for gzip or deflate compressed responses and unpack them transparently,
+     *                       as they are read. Must be off for range requests, offsets into a compressed body are
+     *                       meaningless
+     */
+    public static DefaultHttpClient newPooledClient(int maxConnections, int connectTimeout, int soTimeout, boolean gzip) {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, soTimeout);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpProtocolParams.setUserAgent(params, Config.HTTPC_UA);
+        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        client.setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+        if (gzip) {
+            client.addRequestInterceptor(GZIP_REQUEST_INTERCEPTOR);
+            client.addResponseInterceptor(GZIP_RESPONSE_INTERCEPTOR);
+        }
+        return client;
+    }
+
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new ConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            // Keep-Alive: timeout=5, max=100
+            BasicHeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement element = it.nextElement();
+                if (element.getValue() != null && element.getName().equalsIgnoreCase("timeout")) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException ignored) { }
+                }
+            }
+            return DEFAULT_KEEP_ALIVE;
+        }
+    };
+
+    private static final HttpRequestInterceptor GZIP_REQUEST_INTERCEPTOR = new HttpRequestInterceptor() {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            if (!request.containsHeader("Accept-Encoding")) request.addHeader("Accept-Encoding", "gzip, deflate");
+        }
+    };
+
+    private static final HttpResponseInterceptor GZIP_RESPONSE_INTERCEPTOR = new HttpResponseInterceptor() {
+        @Override
+        public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) return;
+
+            // nothing to unpack, and there's no gzip header to read either
+            int code = response.getStatusLine().getStatusCode();
+            if (code == HttpStatus.SC_NO_CONTENT || code == HttpStatus.SC_NOT_MODIFIED) return;
+            if (entity.getContentLength() == 0) return;
+
+            Header encoding = entity.getContentEncoding();
+            if (encoding == null) return;
+            for (HeaderElement element : encoding.getElements()) {
+                if (element.getName().equalsIgnoreCase("gzip")) {
+                    response.setEntity(new DecompressingEntity(entity, false));
+                    return;
+                }
+                if (element.getName().equalsIgnoreCase("deflate")) {
+                    response.setEntity(new DecompressingEntity(entity, true));
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * @return the body gzipped, or sent as is if compressing doesn't make it any smaller. The server has to accept
+     *         a gzipped request body for the endpoint
+     */
+    public static HttpEntity newCompressedEntity(String body) throws IOException {
+        byte[] raw = body.getBytes("UTF-8");
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(raw.length);
+        GZIPOutputStream out = new GZIPOutputStream(buf);
+        out.write(raw);
+        out.close();
+
+        ByteArrayEntity entity;
+        if (buf.size() < raw.length) {
+            entity = new ByteArrayEntity(buf.toByteArray());
+            entity.setContentEncoding("gzip");
+        } else {
+            entity = new ByteArrayEntity(raw);
+        }
+        return entity;
+    }
+
+    private static class DecompressingEntity extends HttpEntityWrapper {
+        private final boolean deflate;
+        private InputStream content = null;
+
+        DecompressingEntity(HttpEntity wrapped, boolean deflate) {
+            super(wrapped);
+            this.deflate = deflate;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            PushbackInputStream pin = new PushbackInputStream(wrappedEntity.getContent(), 2);
+            byte[] head = new byte[2];
+            int n = pin.read(head);
+            if (n == 1) {
+                int b = pin.read();
+                if (b != -1) head[n++] = (byte) b;
+            }
+            // a body without a length can still turn out to be empty, GZIPInputStream would fail reading its header
+            if (n <= 0) return pin;
+            pin.unread(head, 0, n);
+
+            if (deflate) {
+                // "deflate" is meant to be zlib wrapped, but some servers send the raw stream
+                boolean zlib = n == 2 && (head[0] & 0x0F) == 8 && ((head[0] & 0xFF) << 8 | (head[1] & 0xFF)) % 31 == 0;
+                content = new OwnedInflaterInputStream(pin, new Inflater(!zlib));
+            } else {
+                content = new GZIPInputStream(pin);
+            }
+            return content;
+        }
+
+        @Override
+        public void consumeContent() throws IOException {
+            try {
+                super.consumeContent();
+            } finally {
+                // frees the native inflater, the connection is already taken care of by the wrapped entity
+                if (content != null) {
+                    try { content.close(); }
+                    catch (IOException ignored) { }
+                    content = null;
+                }
+            }
+        }
+
+        @Override
+        public long getContentLength() {
+            // only the compressed length is known
+            return -1;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+    }
+
+    /**
+     * InflaterInputStream only ends inflaters it created itself, this one ends the one it was given on close.
+     */
+    private static class OwnedInflaterInputStream extends InflaterInputStream {
+        OwnedInflaterInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Helpers for reading API responses with a {@link JsonReader}, so values can be pulled straight out of the
+ * stream instead of going through a String and an org.json tree first.
+ */
+public class JsonUtils {
+    private JsonUtils() { }
+
+    /**
+     * @return the next value as a string, null for a JSON null. Numbers and booleans are converted, objects and
+     *         arrays are skipped and read as null
+     */
+    public static String readString(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+        case NULL:
+            reader.nextNull();
+            return null;
+        case BOOLEAN:
+            return Boolean.toString(reader.nextBoolean());
+        case STRING:
+        case NUMBER:
+            return reader.nextString();
+        default:
+            reader.skipValue();
+            return null;
+        }
+    }
+
+    public static boolean readBoolean(JsonReader reader, boolean fallback) throws IOException {
+        switch (reader.peek()) {
+        case BOOLEAN:
+            return reader.nextBoolean();
+        case STRING:
+            return Boolean.parseBoolean(reader.nextString());
+        default:
+            reader.skipValue();
+            return fallback;
+        }
+    }
+
+    /**
+     * @return the next value as an array of strings, or null if it isn't an array
+     */
+    public static String[] readStringArray(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue();
+            return null;
+        }
+
+        ArrayList<String> values = new ArrayList<String>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            values.add(readString(reader));
+        }
+        reader.endArray();
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Builds an org.json tree for the next value, for callers that still want one.
+     *
+     * @return the object, or null if the next value isn't an object
+     */
+    public static JSONObject readObject(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        return (JSONObject) readValue(reader);
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException {
+        try {
+            switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    object.put(reader.nextName(), readValue(reader));
+                }
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                return parseNumber(reader.nextString());
+            default:
+                return reader.nextString();
+            }
+        } catch (JSONException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private static Object parseNumber(String number) {
+        try {
+            if (number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1) {
+                return Long.parseLong(number);
+            }
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            return number;
+        }
+    }
+}
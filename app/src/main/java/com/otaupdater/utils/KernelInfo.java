@@ -107,6 +107,11 @@ public class KernelInfo extends BaseInfo {
         return Config.KERNEL_NOTIF_ID;
     }
 
+    @Override
+    protected int getDownloadNotifID() {
+        return Config.KERNEL_DL_NOTIF_ID;
+    }
+
     @Override
     protected int getDownloadingNotifTitle() {
         return R.string.kernel_download_progress;
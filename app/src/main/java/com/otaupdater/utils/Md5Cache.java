@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent cache of file MD5s, so a download that was already verified stays verified across process
+ * restarts. Entries are keyed by path and only valid while the file's size and mtime are unchanged.
+ * The index is a small binary file that is read on first use and rewritten on every change.
+ */
+public class Md5Cache {
+    private static final String CACHE_FILE_NAME = "md5cache";
+    private static final int MAGIC = 0x4f4d4435; // "OMD5"
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 32;
+    private static final int MD5_BYTES = 16;
+
+    private static File cacheFile = null;
+    private static LinkedHashMap<String, Entry> entries = null;
+
+    private Md5Cache() { }
+
+    /**
+     * Sets where the cache is stored. Nothing is read until the cache is first used. Without this the cache
+     * only lives in memory.
+     */
+    public static synchronized void init(Context ctx) {
+        cacheFile = new File(ctx.getFilesDir(), CACHE_FILE_NAME);
+    }
+
+    /**
+     * @return the cached MD5 of the file, or null if there is none or the file changed since it was cached
+     */
+    public static synchronized String get(File f) {
+        Entry entry = getEntries().get(f.getAbsolutePath());
+        if (entry == null) return null;
+
+        if (entry.size != f.length() || entry.modified != f.lastModified()) {
+            entries.remove(f.getAbsolutePath());
+            save();
+            return null;
+        }
+        return Utils.byteArrToStr(entry.md5);
+    }
+
+    public static synchronized void put(File f, String md5) {
+        byte[] md5Bytes = hexToBytes(md5);
+        if (md5Bytes == null || md5Bytes.length != MD5_BYTES) return;
+
+        getEntries().put(f.getAbsolutePath(), new Entry(f.length(), f.lastModified(), md5Bytes));
+        save();
+    }
+
+    private static LinkedHashMap<String, Entry> getEntries() {
+        if (entries == null) {
+            // access-ordered so the least recently used entry is dropped first
+            entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+            load();
+        }
+        return entries;
+    }
+
+    private static void load() {
+        if (cacheFile == null || !cacheFile.exists()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(Config.LOG_TAG + "Md5Cache", "unknown cache format, ignoring");
+                return;
+            }
+
+            int count = in.readInt();
+            for (int q = 0; q < count; q++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] md5 = new byte[MD5_BYTES];
+                in.readFully(md5);
+                entries.put(path, new Entry(size, modified, md5));
+            }
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "Md5Cache", "error reading cache: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static void save() {
+        if (cacheFile == null) return;
+
+        // write to a temp file and rename over the old one so a crash never leaves a half-written cache
+        File tmpFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().modified);
+                out.write(e.getValue().md5);
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(cacheFile)) {
+                Log.w(Config.LOG_TAG + "Md5Cache", "unable to replace cache file");
+            }
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "Md5Cache", "error writing cache: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try { out.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        if (hex == null || hex.length() % 2 != 0) return null;
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int q = 0; q < bytes.length; q++) {
+            int hi = Character.digit(hex.charAt(q * 2), 16);
+            int lo = Character.digit(hex.charAt(q * 2 + 1), 16);
+            if (hi == -1 || lo == -1) return null;
+            bytes[q] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final byte[] md5;
+
+        Entry(long size, long modified, byte[] md5) {
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.android.gms.auth.GoogleAuthUtil;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the ID token sent as X-API-Authentication in memory until shortly before it expires, so API calls
+ * don't each go through AccountManager and Play Services first. A token that is about to expire is handed out
+ * one last time while a fresh one is fetched in the background, and calls that need a token while one is being
+ * fetched wait for that fetch instead of starting their own.
+ */
+public class OAuthTokenCache {
+    private static final long EXPIRY_MARGIN = 60000; // never hand out a token with less than a minute left
+    private static final long REFRESH_WINDOW = 600000; // start refreshing 10 minutes before expiry
+    private static final long DEFAULT_LIFETIME = 1800000; // if the token's own expiry can't be read
+    private static final long NO_TOKEN_LIFETIME = 60000; // how long "no account" is remembered, no margin applies
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private static String token = null;
+    private static long expires = 0;
+    private static FutureTask<String> pending = null;
+
+    private OAuthTokenCache() { }
+
+    /**
+     * Blocks if there is no usable token yet, never call from the main thread.
+     *
+     * @return the token, or an empty string if there is no Google account or it can't be fetched
+     */
+    public static String get(Context ctx) {
+        FutureTask<String> task;
+        synchronized (OAuthTokenCache.class) {
+            long now = System.currentTimeMillis();
+            if (isUsable(token, expires, now)) {
+                if (needsRefresh(token, expires, now)) fetch(ctx);
+                return token;
+            }
+            task = fetch(ctx);
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(Config.LOG_TAG + "OAuth", "error getting token: " + e.getCause());
+        }
+        return "";
+    }
+
+    /**
+     * Drops the cached token, e.g. after the server rejected it.
+     */
+    public static void invalidate(Context ctx) {
+        final String oldToken;
+        synchronized (OAuthTokenCache.class) {
+            oldToken = token;
+            token = null;
+            expires = 0;
+        }
+        if (oldToken == null || oldToken.length() == 0) return;
+
+        final Context appCtx = ctx.getApplicationContext();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                GoogleAuthUtil.invalidateToken(appCtx, oldToken);
+            }
+        });
+    }
+
+    /**
+     * Starts a fetch unless one is running already. Must hold the class lock.
+     */
+    private static FutureTask<String> fetch(Context ctx) {
+        if (pending == null) {
+            final Context appCtx = ctx.getApplicationContext();
+            final String oldToken = token;
+            pending = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    try {
+                        return fetchToken(appCtx, oldToken);
+                    } finally {
+                        synchronized (OAuthTokenCache.class) {
+                            pending = null;
+                        }
+                    }
+                }
+            });
+            EXECUTOR.execute(pending);
+        }
+        return pending;
+    }
+
+    private static String fetchToken(Context ctx, String oldToken) {
+        String newToken = "";
+        long lifetime = NO_TOKEN_LIFETIME;
+        try {
+            AccountManager am = AccountManager.get(ctx);
+            Account[] accounts = am.getAccountsByType(GoogleAuthUtil.GOOGLE_ACCOUNT_TYPE);
+            if (accounts.length != 0) {
+                // Play Services hands back its own cached copy until it's told to let go of it
+                if (oldToken != null && oldToken.length() != 0) GoogleAuthUtil.invalidateToken(ctx, oldToken);
+                newToken = GoogleAuthUtil.getToken(ctx, accounts[0].name, "audience:server:client_id:" + Config.OAUTH_CLIENT_ID);
+                lifetime = getLifetime(newToken);
+            }
+        } catch (Exception e) {
+            Log.w(Config.LOG_TAG + "OAuth", "error getting token: " + e.getMessage());
+            synchronized (OAuthTokenCache.class) {
+                // a refresh that failed doesn't take away a token that still works
+                if (isUsable(token, expires, System.currentTimeMillis())) return token;
+            }
+            newToken = "";
+            lifetime = NO_TOKEN_LIFETIME;
+        }
+
+        synchronized (OAuthTokenCache.class) {
+            token = newToken;
+            expires = System.currentTimeMillis() + lifetime;
+        }
+        return newToken;
+    }
+
+    /**
+     * The empty "no token" result has nothing that could expire on the server, so it is kept for its whole
+     * lifetime instead of being cut short by the margin.
+     */
+    static boolean isUsable(String token, long expires, long now) {
+        if (token == null) return false;
+        return now < expires - (token.length() == 0 ? 0 : EXPIRY_MARGIN);
+    }
+
+    /**
+     * @return true if a usable token is close enough to expiry that a new one should be fetched in the background
+     */
+    static boolean needsRefresh(String token, long expires, long now) {
+        return token != null && token.length() != 0 && now >= expires - REFRESH_WINDOW;
+    }
+
+    /**
+     * @return how long the token is valid for, from the "exp" claim of the JWT
+     */
+    private static long getLifetime(String token) {
+        try {
+            String[] parts = token.split("\\.");
+            if (parts.length >= 2) {
+                byte[] payload = Base64.decode(parts[1], Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+                long exp = new JSONObject(new String(payload, "UTF-8")).optLong("exp", 0);
+                if (exp > 0) return exp * 1000 - System.currentTimeMillis();
+            }
+        } catch (Exception ignored) {
+        }
+        return DEFAULT_LIFETIME;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * Small world-readable file (ota props, /proc/version) read directly instead of through {@code cat}.
+ * Contents are cached along with the file's mtime and size, and only read again when either changes.
+ */
+public class PropFile {
+    private static final HashMap<String, PropFile> FILES = new HashMap<String, PropFile>();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // shared by all reads, grown as needed. prop files are tiny so this rarely gets past the first size
+    private static ByteBuffer readBuf = ByteBuffer.allocate(4096);
+
+    private final File file;
+
+    private long loadedModified = -1;
+    private long loadedLength = -1;
+    private String contents = null;
+    private JSONObject json = null;
+    private boolean jsonParsed = false;
+
+    private PropFile(String path) {
+        file = new File(path);
+    }
+
+    public static synchronized PropFile get(String path) {
+        PropFile propFile = FILES.get(path);
+        if (propFile == null) {
+            propFile = new PropFile(path);
+            FILES.put(path, propFile);
+        }
+        return propFile;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @return the file contents without trailing whitespace, or null if the file can't be read
+     */
+    public synchronized String getContents() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (contents == null || modified != loadedModified || length != loadedLength) {
+            contents = read(file);
+            loadedModified = modified;
+            loadedLength = length;
+            json = null;
+            jsonParsed = false;
+        }
+        return contents;
+    }
+
+    /**
+     * @return the file parsed as a JSON object, or null if it can't be read or isn't valid JSON
+     */
+    public synchronized JSONObject getJSON() {
+        String str = getContents();
+        if (!jsonParsed) {
+            jsonParsed = true;
+            if (str != null && str.length() != 0) {
+                try {
+                    json = new JSONObject(str);
+                } catch (JSONException e) {
+                    Log.e(Config.LOG_TAG + "PropFile", "Error parsing " + file.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+        return json;
+    }
+
+    private static String read(File f) {
+        if (!f.canRead()) return null;
+
+        FileInputStream in = null;
+        synchronized (PropFile.class) {
+            try {
+                in = new FileInputStream(f);
+                FileChannel channel = in.getChannel();
+
+                readBuf.clear();
+                // files in /proc report a size of 0, so read until EOF instead of trusting the size
+                while (channel.read(readBuf) != -1) {
+                    if (!readBuf.hasRemaining()) {
+                        ByteBuffer bigger = ByteBuffer.allocate(readBuf.capacity() * 2);
+                        readBuf.flip();
+                        bigger.put(readBuf);
+                        readBuf = bigger;
+                    }
+                }
+                readBuf.flip();
+
+                String str = UTF8.decode(readBuf).toString();
+                int end = str.length();
+                while (end > 0 && Character.isWhitespace(str.charAt(end - 1))) end--;
+                return str.substring(0, end);
+            } catch (IOException e) {
+                Log.e(Config.LOG_TAG + "PropFile", "Error reading " + f.getAbsolutePath() + ": " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try { in.close(); }
+                    catch (IOException ignored) { }
+                }
+            }
+        }
+        return null;
+    }
+}
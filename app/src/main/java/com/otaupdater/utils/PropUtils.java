@@ -1,211 +1,183 @@
 package com.otaupdater.utils;
 
 import android.annotation.SuppressLint;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
-import com.otaupdater.utils.ShellCommand.CommandResult;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.File;
 import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class PropUtils {
     public static final String GEN_OTA_PROP = "/system/ota.prop";
     public static final String ROM_OTA_PROP = "/system/rom.ota.prop";
     public static final String KERNEL_OTA_PROP = "/system/kernel.ota.prop";
-
-    private static final boolean ROM_OTA_ENABLED;
-    private static String cachedRomID = null;
-    private static Date cachedRomDate = null;
-    private static String cachedRomVer = null;
-
-    private static /*final*/ boolean KERNEL_OTA_ENABLED;
-    private static String cachedKernelID = null;
-    private static Date cachedKernelDate = null;
-    private static String cachedKernelVer = null;
-    private static String cachedFullKernelVer = null;
-    private static String cachedKernelUname = null;
-
-    private static String cachedSystemSdPath = null;
-    private static String cachedRecoverySdPath = null;
-
-    private static Boolean cachedNoFlash = null;
-    private static String cachedRebootCmd = null;
-
-    static {
-        ROM_OTA_ENABLED = new File("/system/rom.ota.prop").exists() || LegacyCompat.isRomOtaEnabled();
-
-        KERNEL_OTA_ENABLED = new File("/system/kernel.ota.prop").exists();
-        if (KERNEL_OTA_ENABLED) {
-            String fullVer = PropUtils.getFullKernelVersion();
-            String fullOtaVer = PropUtils.getFullKernelOtaVersion();
-            if (!fullVer.equals(fullOtaVer)) {
-                KERNEL_OTA_ENABLED = false;
-                //TODO maybe try to delete the file?
+    public static final String PROC_VERSION = "/proc/version";
+
+    // the one published snapshot. replaced as a whole, never modified
+    private static volatile DeviceProps props = null;
+
+    // in-progress (or last finished) load, shared so concurrent callers wait on it instead of loading again
+    private static FutureTask<DeviceProps> loadTask = null;
+    // bumped by refresh(), so a load that was overtaken by a newer one doesn't publish its older result
+    private static int loadGeneration = 0;
+
+    /**
+     * Starts loading all props in the background. Should be called as early as possible (application start)
+     * so the values are ready by the time the UI or receivers need them. Safe to call more than once.
+     */
+    public static void warmUp() {
+        if (props != null) return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(getLoadTask());
+    }
+
+    /**
+     * @return the current props snapshot, loading it (or waiting for a load in progress) if necessary
+     */
+    public static DeviceProps getProps() {
+        DeviceProps p = props;
+        if (p != null) return p;
+        return awaitLoad(getLoadTask());
+    }
+
+    /**
+     * Reads all props again in the background, for after an update was flashed or the prop files were changed.
+     * The current snapshot is still handed out until the new one is ready.
+     */
+    public static void refresh() {
+        FutureTask<DeviceProps> task;
+        synchronized (PropUtils.class) {
+            SystemProps.clear();
+            loadGeneration++;
+            loadTask = null;
+            task = getLoadTask();
+        }
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(task);
+    }
+
+    private static synchronized FutureTask<DeviceProps> getLoadTask() {
+        if (loadTask == null) {
+            final int generation = loadGeneration;
+            loadTask = new FutureTask<DeviceProps>(new Callable<DeviceProps>() {
+                @Override
+                public DeviceProps call() {
+                    DeviceProps p = DeviceProps.load();
+                    synchronized (PropUtils.class) {
+                        if (generation == loadGeneration || props == null) props = p;
+                    }
+                    return p;
+                }
+            });
+        }
+        return loadTask;
+    }
+
+    private static DeviceProps awaitLoad(FutureTask<DeviceProps> task) {
+        // the load is short, so it's waited out and the interrupt passed on afterwards. cleared while loading,
+        // a load run on this thread would fail right away otherwise
+        boolean interrupted = Thread.interrupted();
+        boolean retried = false;
+        try {
+            while (true) {
+                // no-op if the task was already started (by warmUp or another caller), in which case get() waits for it
+                task.run();
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Log.e(Config.LOG_TAG + "PropUtils", "Error loading props: " + e.getCause());
+                    synchronized (PropUtils.class) {
+                        if (loadTask == task) loadTask = null;
+                    }
+                    if (retried) throw new RuntimeException("Error loading props", e.getCause());
+
+                    // once more through a new shared task, so the result is published and not loaded by every caller
+                    retried = true;
+                    task = getLoadTask();
+                }
             }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
         }
     }
 
-    // from AOSP source: packages/apps/Settings/src/com/android/settings/DeviceInfoSettings.java
-    private static final String PROC_VERSION_REGEX =
-            "\\w+\\s+" + /* ignore: Linux */
-            "\\w+\\s+" + /* ignore: version */
-            "([^\\s]+)\\s+" + /* group 1: 2.6.22-omap1 */
-            "\\(([^\\s@]+@[^\\s@]+)\\)+\\s+" + /* group 2: (xxxxxx@xxxxx.constant) */
-            // "(gcc" followed by anything up to two consecutive ")"
-            // separated by only white space (which seems to be the norm)
-            "\\(gcc.*\\)\\s+" +
-            "([^\\s]+)\\s+" + /* group 3: #26 */
-            "(?:SMP\\s+)?" + /* ignore: SMP (optional) */
-            "(?:PREEMPT\\s+)?" + /* ignore: PREEMPT (optional) */
-            "(.+)"; /* group 4: date */
-
     public static boolean isRomOtaEnabled() {
-        return ROM_OTA_ENABLED;
+        return getProps().rom.otaEnabled;
     }
 
     public static boolean isKernelOtaEnabled() {
-        return KERNEL_OTA_ENABLED;
+        return getProps().kernel.otaEnabled;
     }
 
     public static String getRomOtaID() {
-        if (!ROM_OTA_ENABLED) return null;
-        if (cachedRomID == null) {
-            readRomOtaProp();
-        }
-        if (cachedRomID == null) {
-            cachedRomID = LegacyCompat.getRomOtaID();
-        }
-        return cachedRomID;
+        return getProps().rom.otaID;
     }
 
     public static Date getRomOtaDate() {
-        if (!ROM_OTA_ENABLED) return null;
-        if (cachedRomDate == null) {
-            readRomOtaProp();
-        }
-        if (cachedRomDate == null) {
-            cachedRomDate = LegacyCompat.getRomOtaDate();
-        }
-        return cachedRomDate;
+        return getProps().rom.otaDate;
     }
 
     public static String getRomOtaVersion() {
-        if (!ROM_OTA_ENABLED) return null;
-        if (cachedRomVer == null) {
-            readRomOtaProp();
-        }
-        if (cachedRomVer == null) {
-            cachedRomVer = LegacyCompat.getRomOtaVersion();
-        }
-        return cachedRomVer;
+        return getProps().rom.otaVersion;
     }
 
     public static String getRomVersion() {
-        ShellCommand cmd = new ShellCommand();
-        CommandResult modVer = cmd.sh.runWaitFor("getprop ro.modversion");
-        if (modVer.stdout.length() != 0) return modVer.stdout;
+        String modVer = SystemProps.get("ro.modversion");
+        if (modVer != null) return modVer;
 
-        CommandResult cmVer = cmd.sh.runWaitFor("getprop ro.cm.version");
-        if (cmVer.stdout.length() != 0) return cmVer.stdout;
+        String cmVer = SystemProps.get("ro.cm.version");
+        if (cmVer != null) return cmVer;
 
-        CommandResult aokpVer = cmd.sh.runWaitFor("getprop ro.aokp.version");
-        if (aokpVer.stdout.length() != 0) return aokpVer.stdout;
+        String aokpVer = SystemProps.get("ro.aokp.version");
+        if (aokpVer != null) return aokpVer;
 
         return Build.DISPLAY;
     }
 
     public static String getKernelOtaID() {
-        if (!KERNEL_OTA_ENABLED) return null;
-        if (cachedKernelID == null) {
-            readKernelOtaProp();
-        }
-        return cachedKernelID;
+        return getProps().kernel.otaID;
     }
 
     public static Date getKernelOtaDate() {
-        if (!KERNEL_OTA_ENABLED) return null;
-        if (cachedKernelDate == null) {
-            readKernelOtaProp();
-        }
-        return cachedKernelDate;
+        return getProps().kernel.otaDate;
     }
 
     public static String getKernelOtaVersion() {
-        if (!KERNEL_OTA_ENABLED) return null;
-        if (cachedKernelVer == null) {
-            readKernelOtaProp();
-        }
-        return cachedKernelVer;
+        return getProps().kernel.otaVersion;
     }
 
     public static String getKernelVersion() {
-        if (cachedKernelUname == null) {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult procVerResult = cmd.sh.runWaitFor("cat /proc/version");
-            if (procVerResult.stdout.length() == 0) return null;
-
-            Pattern p = Pattern.compile(PROC_VERSION_REGEX);
-            Matcher m = p.matcher(procVerResult.stdout);
-
-            if (!m.matches() || m.groupCount() < 4) {
-                return null;
-            } else {
-                cachedKernelUname = (new StringBuilder(m.group(1)).append("\n").append(
-                        m.group(2)).append(" ").append(m.group(3)).append("\n")
-                        .append(m.group(4))).toString();
-            }
-        }
-        return cachedKernelUname;
+        return getProps().kernelUname;
     }
 
     public static String getFullKernelOtaVersion() {
-        if (!KERNEL_OTA_ENABLED) return null;
-        if (cachedFullKernelVer == null) {
-            readKernelOtaProp();
-        }
-        return cachedFullKernelVer;
+        return getProps().kernel.fullOtaVersion;
     }
 
     public static String getFullKernelVersion() {
-        ShellCommand cmd = new ShellCommand();
-        CommandResult procVerResult = cmd.sh.runWaitFor("cat /proc/version");
-        if (procVerResult.stdout.length() == 0) return null;
-        return procVerResult.stdout;
+        String procVersion = PropFile.get(PROC_VERSION).getContents();
+        if (procVersion == null || procVersion.length() == 0) return null;
+        return procVersion;
     }
 
     public static String getSystemSdPath() {
-        if (cachedSystemSdPath == null) {
-            readGenOtaProp();
-        }
-        return cachedSystemSdPath;
+        return getProps().general.systemSdPath;
     }
 
     public static String getRecoverySdPath() {
-        if (cachedRecoverySdPath == null) {
-            readGenOtaProp();
-        }
-        return cachedRecoverySdPath;
+        return getProps().general.recoverySdPath;
     }
 
     public static boolean getNoFlash() {
-        if (cachedNoFlash == null) {
-            readGenOtaProp();
-        }
-        return cachedNoFlash;
+        return getProps().general.noFlash;
     }
 
     public static String getRebootCmd() {
-        if (cachedRebootCmd == null) {
-            readGenOtaProp();
-        }
-        return cachedRebootCmd;
+        return getProps().general.rebootCmd;
     }
 
     @SuppressLint("SdCardPath")
@@ -217,139 +189,4 @@ public class PropUtils {
 
         return "/sdcard" + userPath;
     }
-    private static void readGenOtaProp() {
-        if (!new File(GEN_OTA_PROP).exists()) {
-            cachedNoFlash = LegacyCompat.getNoflash();
-            cachedRebootCmd = LegacyCompat.getRebootCmd();
-            cachedSystemSdPath = LegacyCompat.getSystemSdPath();
-            cachedRecoverySdPath = LegacyCompat.getRecoverySdPath();
-
-            if (cachedNoFlash == null) cachedNoFlash = false;
-            if (cachedRebootCmd == null) cachedRebootCmd = "reboot recovery";
-            if (cachedSystemSdPath == null) cachedSystemSdPath = Environment.getExternalStorageDirectory().getAbsolutePath();
-            if (cachedRecoverySdPath == null) cachedRecoverySdPath = getDefaultRecoverySdPath();
-            return;
-        }
-
-        ShellCommand cmd = new ShellCommand();
-        CommandResult catResult = cmd.sh.runWaitFor("cat " + GEN_OTA_PROP);
-        if (catResult.stdout.length() == 0) return;
-
-        try {
-            JSONObject genOtaProp = new JSONObject(catResult.stdout);
-            cachedNoFlash = genOtaProp.optBoolean("noflash", false);
-            cachedRebootCmd = genOtaProp.optString("rebootcmd", "reboot recovery");
-            cachedSystemSdPath = genOtaProp.optString("system_sdpath", Environment.getExternalStorageDirectory().getAbsolutePath());
-            cachedRecoverySdPath = genOtaProp.optString("recovery_sdpath", getDefaultRecoverySdPath());
-        } catch (JSONException e) {
-            Log.e(Config.LOG_TAG + "ReadOTAProp", "Error in ota.prop file!");
-        }
-    }
-
-    private static void readRomOtaProp() {
-        if (!ROM_OTA_ENABLED) return;
-
-        ShellCommand cmd = new ShellCommand();
-        CommandResult catResult = cmd.sh.runWaitFor("cat " + ROM_OTA_PROP);
-        if (catResult.stdout.length() == 0) return;
-
-        try {
-            JSONObject romOtaProp = new JSONObject(catResult.stdout);
-            cachedRomID = romOtaProp.getString("otaid");
-            cachedRomVer = romOtaProp.getString("otaver");
-            cachedRomDate = Utils.parseDate(romOtaProp.getString("otatime"));
-        } catch (JSONException e) {
-            Log.e(Config.LOG_TAG + "ReadOTAProp", "Error in rom.ota.prop file!");
-        }
-    }
-
-    private static void readKernelOtaProp() {
-        if (!KERNEL_OTA_ENABLED) return;
-
-        ShellCommand cmd = new ShellCommand();
-        CommandResult catResult = cmd.sh.runWaitFor("cat " + KERNEL_OTA_PROP);
-        if (catResult.stdout.length() == 0) return;
-
-        try {
-            JSONObject kernelOtaProp = new JSONObject(catResult.stdout);
-            cachedKernelID = kernelOtaProp.getString("otaid");
-            cachedKernelVer = kernelOtaProp.getString("otaver");
-            cachedKernelDate = Utils.parseDate(kernelOtaProp.getString("otatime"));
-            cachedFullKernelVer = kernelOtaProp.getString("fullver");
-        } catch (JSONException e) {
-            Log.e(Config.LOG_TAG + "ReadOTAProp", "Error in kernel.ota.prop file!");
-        }
-    }
-
-    private static class LegacyCompat {
-        public static final String OTA_ID_PROP = "otaupdater.otaid";
-        public static final String OTA_VER_PROP = "otaupdater.otaver";
-        public static final String OTA_DATE_PROP = "otaupdater.otatime";
-        public static final String OTA_REBOOT_CMD_PROP = "otaupdater.rebootcmd";
-        public static final String OTA_NOFLASH_PROP = "otaupdater.noflash";
-        public static final String OTA_SYSTEM_SD_PATH_PROP = "otaupdater.sdcard.os";
-        public static final String OTA_RECOVERY_SD_PATH_PROP = "otaupdater.sdcard.recovery";
-
-        // cache the legacy ROM id because it's used in isRomOtaEnabled in order to avoid unnecessary forks to getprop
-        private static String cachedRomID = null;
-
-        public static boolean isRomOtaEnabled() {
-            String romID = getRomOtaID();
-            return romID != null && romID.isEmpty();
-        }
-
-        public static String getRomOtaID() {
-            if (cachedRomID == null) {
-                ShellCommand cmd = new ShellCommand();
-                CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_ID_PROP);
-                if (propResult.stdout.length() == 0) return null;
-                cachedRomID = propResult.stdout;
-            }
-            return cachedRomID;
-        }
-
-        public static Date getRomOtaDate() {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_DATE_PROP);
-            if (propResult.stdout.length() == 0) return null;
-            return Utils.parseDate(propResult.stdout);
-        }
-
-        public static String getRomOtaVersion() {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_VER_PROP);
-            if (propResult.stdout.length() == 0) return null;
-            return propResult.stdout;
-        }
-
-        public static String getRebootCmd() {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_REBOOT_CMD_PROP);
-            if (propResult.stdout.length() == 0) return null;
-            return propResult.stdout;
-        }
-
-        public static Boolean getNoflash() {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_NOFLASH_PROP);
-            if (propResult.stdout.length() == 0) return null;
-            return propResult.stdout.equals("1") || propResult.stdout.equalsIgnoreCase("true");
-        }
-
-        @SuppressLint("SdCardPath")
-        public static String getSystemSdPath() {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_SYSTEM_SD_PATH_PROP);
-            if (propResult.stdout.length() == 0) return null;
-            return propResult.stdout;
-        }
-
-        @SuppressLint("SdCardPath")
-        public static String getRecoverySdPath() {
-            ShellCommand cmd = new ShellCommand();
-            CommandResult propResult = cmd.sh.runWaitFor("getprop " + OTA_RECOVERY_SD_PATH_PROP);
-            if (propResult.stdout.length() == 0) return null;
-            return propResult.stdout;
-        }
-    }
 }
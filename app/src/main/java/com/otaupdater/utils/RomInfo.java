@@ -107,6 +107,11 @@ public class RomInfo extends BaseInfo {
         return Config.ROM_NOTIF_ID;
     }
 
+    @Override
+    protected int getDownloadNotifID() {
+        return Config.ROM_DL_NOTIF_ID;
+    }
+
     @Override
     protected int getDownloadingNotifTitle() {
         return R.string.rom_download_progress;
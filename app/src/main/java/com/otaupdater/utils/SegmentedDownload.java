@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.otaupdater.DownloadReceiver;
+import com.otaupdater.OTAUpdaterActivity;
+import com.otaupdater.R;
+import com.otaupdater.SegmentedDownloadService;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-app alternative to DownloadManager that fetches a file over several connections at once, one HTTP Range
+ * request per segment. Segments are written straight into a preallocated file with positional writes, and
+ * their progress is saved to a small state file next to the download so every segment resumes on its own
+ * after a dropped connection, a process restart or a retry after failing. Only bytes that were flushed to disk
+ * are ever recorded, and every range request carries an If-Range with the ETag or Last-Modified the file had
+ * when it was started, so a file that changed on the server is never stitched together from two versions.
+ * <p/>
+ * When the update lists mirrors, they are all raced with a small range request first and segments start on the
+ * fastest one. A segment whose mirror fails or stalls moves on to the next fastest.
+ * <p/>
+ * Downloads run inside {@link SegmentedDownloadService}, which keeps the process in the foreground while they do
+ * and resumes them if the process was killed anyway. Looking a download up never resumes it.
+ * <p/>
+ * The transfer itself is done by {@link SegmentedTransfer}, this class ties it to the app.
+ * <p/>
+ * Downloads get negative IDs so they can share {@link Config}'s download ID slots with DownloadManager IDs,
+ * and report the same DownloadManager status and reason codes through {@link DownloadStatus}.
+ */
+public class SegmentedDownload {
+    private static final long NETWORK_CHECK_INTERVAL = 10000;
+
+    private static final HashMap<Long, SegmentedDownload> DOWNLOADS = new HashMap<Long, SegmentedDownload>();
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+    private static long lastID = 0;
+
+    private final Context ctx;
+    private final long id;
+    private final BaseInfo info;
+    private final SegmentedTransfer transfer;
+
+    private boolean running = false;
+
+    private SegmentedDownload(Context ctx, long id, BaseInfo info) {
+        this.ctx = ctx.getApplicationContext();
+        this.id = id;
+        this.info = info;
+        this.transfer = new SegmentedTransfer(info.getTransferFile(), info.getTransferUrls());
+    }
+
+    public static boolean isSegmentedID(long id) {
+        return id < -1;
+    }
+
+    /**
+     * @return true if an earlier download of the file was interrupted and can be resumed with {@link #start}
+     */
+    public static boolean hasPartial(File file) {
+        return SegmentedTransfer.hasPartial(file);
+    }
+
+    /**
+     * Starts downloading the update in the background.
+     *
+     * @return the new download's ID, always negative
+     */
+    public static long start(Context ctx, BaseInfo info) {
+        long id = newID(ctx);
+
+        SegmentedDownload download = new SegmentedDownload(ctx, id, info);
+        // a retry after a failure carries on where the last attempt left off
+        if (download.transfer.loadState()) {
+            Log.v(Config.LOG_TAG + "SegmentedDL", "resuming " + download.transfer.getFile().getName() + " at " +
+                    download.getDownloadedBytes() + "/" + download.getTotalBytes());
+        }
+        download.transfer.setStatus(DownloadManager.STATUS_PENDING, 0);
+
+        synchronized (SegmentedDownload.class) {
+            DOWNLOADS.put(id, download);
+        }
+        SegmentedDownloadService.start(ctx, id);
+        return id;
+    }
+
+    private static synchronized long newID(Context ctx) {
+        Config cfg = Config.getInstance(ctx);
+
+        // the clock alone gives two downloads started in the same millisecond the same ID
+        long id = Math.min(-System.currentTimeMillis(), lastID - 1);
+        while (DOWNLOADS.containsKey(id) || id == cfg.getRomDownloadID() || id == cfg.getKernelDownloadID()) {
+            id--;
+        }
+        lastID = id;
+        return id;
+    }
+
+    /**
+     * Never resumes the download, that's up to {@link SegmentedDownloadService}.
+     *
+     * @return the download with the given ID, picked back up from its state file if the process was restarted,
+     *         or null if there is no such download
+     */
+    public static synchronized SegmentedDownload get(Context ctx, long id) {
+        if (!isSegmentedID(id)) return null;
+
+        SegmentedDownload download = DOWNLOADS.get(id);
+        if (download != null) return download;
+
+        Config cfg = Config.getInstance(ctx);
+        BaseInfo info = null;
+        if (cfg.getRomDownloadID() == id) {
+            info = cfg.getStoredRomUpdate();
+        } else if (cfg.getKernelDownloadID() == id) {
+            info = cfg.getStoredKernelUpdate();
+        }
+        if (info == null) return null;
+
+        download = new SegmentedDownload(ctx, id, info);
+        SegmentedTransfer transfer = download.transfer;
+        if (transfer.loadState()) {
+            // interrupted by the process going away, it's paused until the service picks it up again
+            if (transfer.getStatus() != DownloadManager.STATUS_FAILED) {
+                transfer.setStatus(DownloadManager.STATUS_PAUSED, DownloadManager.PAUSED_UNKNOWN);
+            }
+        } else if (transfer.getFile().exists()) {
+            // state file is only removed once everything is written
+            transfer.setSuccessful(transfer.getFile().length());
+        } else if (info.deltaDownload && info.getDownloadFile().exists()) {
+            // patch was already applied and deleted
+            transfer.setSuccessful(info.getDownloadFile().length());
+        } else {
+            return null;
+        }
+        DOWNLOADS.put(id, download);
+        return download;
+    }
+
+    /**
+     * Stops the download and deletes it along with its partial file, like {@link DownloadManager#remove}.
+     */
+    public static void remove(Context ctx, long id) {
+        SegmentedDownload download = get(ctx, id);
+        if (download == null) return;
+
+        synchronized (SegmentedDownload.class) {
+            DOWNLOADS.remove(id);
+        }
+        download.stop();
+        download.transfer.discardPartial();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public BaseInfo getInfo() {
+        return info;
+    }
+
+    public int getNotifID() {
+        return info.getDownloadNotifID();
+    }
+
+    public int getStatus() {
+        return transfer.getStatus();
+    }
+
+    public int getReason() {
+        return transfer.getReason();
+    }
+
+    public long getTotalBytes() {
+        return transfer.getTotalBytes();
+    }
+
+    public long getDownloadedBytes() {
+        return transfer.getDownloadedBytes();
+    }
+
+    /**
+     * Runs the download in the background, unless it's already running, finished or failed. Only meant for
+     * {@link SegmentedDownloadService}.
+     *
+     * @param onFinished run on the download thread once the download stopped, for whatever reason
+     * @return false if the download wasn't started
+     */
+    public boolean resume(final Runnable onFinished) {
+        synchronized (this) {
+            int status = transfer.getStatus();
+            if (running || transfer.isStopped() || status == DownloadManager.STATUS_SUCCESSFUL ||
+                    status == DownloadManager.STATUS_FAILED) {
+                return false;
+            }
+            running = true;
+        }
+
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download();
+                } finally {
+                    synchronized (SegmentedDownload.this) {
+                        running = false;
+                    }
+                    if (onFinished != null) onFinished.run();
+                }
+            }
+        });
+        return true;
+    }
+
+    private void stop() {
+        transfer.stop();
+        cancelProgressNotif();
+    }
+
+    private void download() {
+        PowerManager pm = (PowerManager) ctx.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, SegmentedDownload.class.getName());
+        WifiManager wm = (WifiManager) ctx.getSystemService(Context.WIFI_SERVICE);
+        WifiManager.WifiLock wifiLock = wm.createWifiLock(SegmentedDownload.class.getName());
+
+        wakeLock.acquire();
+        wifiLock.acquire();
+        boolean finished;
+        try {
+            finished = transfer.run(new SegmentedTransfer.Listener() {
+                @Override
+                public boolean waitForNetwork() {
+                    return SegmentedDownload.this.waitForNetwork();
+                }
+
+                @Override
+                public void onProgress() {
+                    updateProgressNotif();
+                    DownloadObserver.notifyChanged();
+                }
+            });
+        } finally {
+            wifiLock.release();
+            wakeLock.release();
+        }
+
+        if (!finished) return;
+        cancelProgressNotif();
+        DownloadObserver.notifyChanged();
+
+        // same broadcast DownloadManager sends, so DownloadReceiver verifies and notifies the same way
+        Intent i = new Intent(ctx, DownloadReceiver.class);
+        i.setAction(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
+        i.putExtra(DownloadManager.EXTRA_DOWNLOAD_ID, id);
+        ctx.sendBroadcast(i);
+    }
+
+    /**
+     * @return false if the download was stopped while waiting
+     */
+    private boolean waitForNetwork() {
+        ConnectivityManager cm = (ConnectivityManager) ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        boolean wifiOnly = Config.getInstance(ctx).getWifiOnlyDl();
+
+        while (!transfer.isStopped()) {
+            NetworkInfo ni = cm.getActiveNetworkInfo();
+            if (ni != null && ni.isConnected() && !ni.isRoaming()) {
+                if (!wifiOnly || ni.getType() == ConnectivityManager.TYPE_WIFI) return true;
+                transfer.setStatus(DownloadManager.STATUS_PAUSED, DownloadManager.PAUSED_QUEUED_FOR_WIFI);
+            } else {
+                transfer.setStatus(DownloadManager.STATUS_PAUSED, DownloadManager.PAUSED_WAITING_FOR_NETWORK);
+            }
+            DownloadObserver.notifyChanged();
+
+            try {
+                Thread.sleep(NETWORK_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void updateProgressNotif() {
+        NotificationManager nm = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(getNotifID(), buildProgressNotif());
+    }
+
+    /**
+     * @return the ongoing notification showing the download's progress, posted as {@link #getNotifID()}
+     */
+    public Notification buildProgressNotif() {
+        DownloadStatus status = DownloadStatus.fromSegmented(this);
+
+        Intent mainIntent = new Intent(ctx, OTAUpdaterActivity.class);
+        mainIntent.setAction(info.getNotifAction());
+        mainIntent.putExtra(OTAUpdaterActivity.EXTRA_FLAG_DOWNLOAD_DIALOG, true);
+        PendingIntent mainPIntent = PendingIntent.getActivity(ctx, 0, mainIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(ctx);
+        builder.setContentTitle(ctx.getString(info.getDownloadingNotifTitle()));
+        builder.setContentText(status.getProgressStr(ctx));
+        builder.setSmallIcon(android.R.drawable.stat_sys_download);
+        builder.setContentIntent(mainPIntent);
+        builder.setOngoing(true);
+        builder.setOnlyAlertOnce(true);
+        builder.setProgress(100, (int) status.getDownloadedPercent(), status.getTotalBytes() <= 0);
+        return builder.build();
+    }
+
+    private void cancelProgressNotif() {
+        NotificationManager nm = (NotificationManager) ctx.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.cancel(info.getDownloadNotifID());
+    }
+}
@@ -0,0 +1,882 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The part of {@link SegmentedDownload} that moves the bytes: racing the mirrors, fetching the segments into the
+ * preallocated file and keeping the state file. It only uses DownloadManager's status and reason codes from
+ * Android, so it runs unchanged in JVM tests against a local HTTP server.
+ */
+class SegmentedTransfer {
+    private static final int SEGMENTS = 4;
+    private static final long MIN_SEGMENT_SIZE = 4194304; // 4mb
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int SO_TIMEOUT = 30000;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_DELAY = 5000;
+
+    private static final int PROBE_BYTES = 262144; // 256kb
+    private static final long PROBE_TIMEOUT = 10000;
+    private static final long STALL_WINDOW = 15000;
+    private static final long STALL_MIN_BYTES = 65536; // under ~4kb/s over the window
+
+    private static final long UPDATE_INTERVAL = 1000;
+    private static final long SAVE_INTERVAL = 5000;
+
+    private static final int STATE_MAGIC = 0x4f534547; // "OSEG"
+    private static final int STATE_VERSION = 3;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+    private static HttpClient httpClient = null;
+
+    private final File file;
+    private final File stateFile;
+    private final String[] candidates;
+    private final String url;
+
+    // tests shorten these
+    long retryDelay = RETRY_DELAY;
+    long probeTimeout = PROBE_TIMEOUT;
+
+    private Listener listener = null;
+    private volatile boolean stopped = false;
+    private final CountDownLatch halted = new CountDownLatch(1); // stopped, or a segment failed for good
+    private final HashSet<HttpGet> activeRequests = new HashSet<HttpGet>();
+
+    private int status = DownloadManager.STATUS_PENDING;
+    private int reason = 0;
+    private long totalBytes = -1;
+    private Segment[] segments = null;
+    private FileChannel channel = null;
+    private String[] urls = null; // fastest first
+    private final HashSet<String> rejected = new HashSet<String>(); // mirrors that refused the file
+    private HashMap<String, String> validators = new HashMap<String, String>(); // url -> If-Range value
+
+    /**
+     * @param urls where the file can be downloaded from, the first one is the one it's known by in the state file
+     */
+    SegmentedTransfer(File file, String[] urls) {
+        this.file = file;
+        this.stateFile = getStateFile(file);
+        this.candidates = urls;
+        this.url = urls[0];
+    }
+
+    static boolean hasPartial(File file) {
+        return getStateFile(file).exists() && file.exists();
+    }
+
+    private static File getStateFile(File file) {
+        return new File(file.getAbsolutePath() + ".segments");
+    }
+
+    interface Listener {
+        /**
+         * Blocks until the network can be used.
+         *
+         * @return false if the transfer should give up instead
+         */
+        boolean waitForNetwork();
+
+        /**
+         * Called every second or so while segments are running.
+         */
+        void onProgress();
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    synchronized int getStatus() {
+        return status;
+    }
+
+    synchronized int getReason() {
+        return reason;
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized long getDownloadedBytes() {
+        if (segments == null) return status == DownloadManager.STATUS_SUCCESSFUL ? totalBytes : 0;
+
+        long downloaded = 0;
+        for (Segment segment : segments) {
+            downloaded += segment.pos - segment.start;
+        }
+        return downloaded;
+    }
+
+    synchronized void setStatus(int status, int reason) {
+        this.status = status;
+        this.reason = reason;
+    }
+
+    /**
+     * For a file that was already complete when the transfer was picked back up.
+     */
+    synchronized void setSuccessful(long length) {
+        status = DownloadManager.STATUS_SUCCESSFUL;
+        reason = 0;
+        totalBytes = length;
+    }
+
+    /**
+     * Aborts every request in flight. The transfer can't be run again afterwards.
+     */
+    void stop() {
+        stopped = true;
+        halt();
+    }
+
+    private void halt() {
+        halted.countDown();
+        abortRequests();
+    }
+
+    private void abortRequests() {
+        synchronized (activeRequests) {
+            for (HttpGet request : activeRequests) {
+                request.abort();
+            }
+        }
+    }
+
+    private boolean isHalted() {
+        return halted.getCount() == 0;
+    }
+
+    /**
+     * One segment that can't be finished fails the whole transfer, so the others are stopped where they are
+     * instead of downloading bytes that would only sit on disk until a retry.
+     */
+    private void fail(Segment segment, int reason, String message) {
+        Log.w(Config.LOG_TAG + "SegmentedDL", "segment at " + segment.start + " failed: " + message);
+        segment.error = reason;
+        halt();
+    }
+
+    /**
+     * Downloads whatever is still missing, blocking until the file is complete, the transfer failed or it was
+     * stopped.
+     *
+     * @return false if it was stopped before it got that far
+     */
+    boolean run(Listener listener) {
+        this.listener = listener;
+
+        RandomAccessFile raf = null;
+        try {
+            if (!listener.waitForNetwork()) return false;
+
+            ArrayList<Probe> probes = probe();
+            long length = probes.get(0).length;
+            synchronized (this) {
+                if (segments != null && (length != totalBytes || validatorsChanged(probes))) {
+                    // what's on disk belongs to another version of the file
+                    Log.w(Config.LOG_TAG + "SegmentedDL", "file changed on the server, starting over");
+                    segments = null;
+                    validators.clear();
+                }
+                if (segments == null) {
+                    totalBytes = length;
+                    segments = split(length);
+                }
+                for (Probe probe : probes) {
+                    if (probe.validator != null && !validators.containsKey(probe.url)) {
+                        validators.put(probe.url, probe.validator);
+                    }
+                }
+            }
+
+            raf = new RandomAccessFile(file, "rw");
+            // reserve the whole file up front so positional writes never have to grow it
+            if (totalBytes > 0) {
+                if (raf.length() != totalBytes) raf.setLength(totalBytes);
+            } else {
+                raf.setLength(0);
+            }
+            channel = raf.getChannel();
+            saveState(snapshotSegments());
+
+            setStatus(DownloadManager.STATUS_RUNNING, 0);
+            runSegments();
+            if (stopped) return false;
+
+            synchronized (this) {
+                for (Segment segment : segments) {
+                    if (segment.error != 0) {
+                        status = DownloadManager.STATUS_FAILED;
+                        reason = segment.error;
+                        break;
+                    }
+                }
+                if (status != DownloadManager.STATUS_FAILED) {
+                    if (totalBytes <= 0) totalBytes = getDownloadedBytes();
+                    status = DownloadManager.STATUS_SUCCESSFUL;
+                }
+            }
+
+            if (getStatus() == DownloadManager.STATUS_SUCCESSFUL) {
+                channel.force(true);
+                //noinspection ResultOfMethodCallIgnored
+                stateFile.delete();
+            } else if (getReason() == DownloadManager.ERROR_CANNOT_RESUME) {
+                discardPartial();
+            } else {
+                Segment[] snapshot = snapshotSegments();
+                channel.force(false);
+                saveState(snapshot);
+            }
+        } catch (DownloadException e) {
+            Log.w(Config.LOG_TAG + "SegmentedDL", "download failed: " + e.getMessage());
+            setStatus(DownloadManager.STATUS_FAILED, e.reason);
+            if (e.reason == DownloadManager.ERROR_CANNOT_RESUME) discardPartial();
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "SegmentedDL", "download failed: " + e.getMessage());
+            setStatus(DownloadManager.STATUS_FAILED, DownloadManager.ERROR_FILE_ERROR);
+        } finally {
+            if (raf != null) {
+                try { raf.close(); }
+                catch (IOException ignored) { }
+            }
+            channel = null;
+        }
+        return !stopped;
+    }
+
+    private void runSegments() throws IOException {
+        final CountDownLatch done = new CountDownLatch(segments.length);
+        for (final Segment segment : segments) {
+            EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetchSegment(segment);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        long lastSave = System.currentTimeMillis();
+        try {
+            while (!done.await(UPDATE_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (stopped) return;
+
+                listener.onProgress();
+
+                if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+                    // positions are taken before flushing, the state file must never claim bytes that weren't
+                    // on disk yet when it was written
+                    Segment[] snapshot = snapshotSegments();
+                    channel.force(false);
+                    saveState(snapshot);
+                    lastSave = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stop();
+        }
+    }
+
+    private void fetchSegment(Segment segment) {
+        int failures = 0;
+        int maxFailures = MAX_RETRIES * urls.length;
+        while (!segment.isDone() && !isHalted()) {
+            if (!listener.waitForNetwork()) return;
+            setStatus(DownloadManager.STATUS_RUNNING, 0);
+
+            try {
+                fetchRange(segment);
+                failures = 0;
+            } catch (MirrorRejectedException e) {
+                int next = reject(segment.mirror);
+                if (next == -1) {
+                    fail(segment, DownloadManager.ERROR_UNHANDLED_HTTP_CODE, "every mirror refused it, last " + e.getMessage());
+                    return;
+                }
+                Log.v(Config.LOG_TAG + "SegmentedDL", "segment at " + segment.start + " refused (" + e.getMessage() +
+                        "), switching to " + urls[next]);
+                segment.mirror = next;
+            } catch (DownloadException e) {
+                fail(segment, e.reason, e.getMessage());
+                return;
+            } catch (IOException e) {
+                if (isHalted()) return;
+                if (++failures > maxFailures) {
+                    fail(segment, DownloadManager.ERROR_HTTP_DATA_ERROR, "gave up, " + e.getMessage());
+                    return;
+                }
+
+                if (urls.length > 1) {
+                    int next = nextMirror(segment.mirror);
+                    if (next == -1) return;
+                    segment.mirror = next;
+                    Log.v(Config.LOG_TAG + "SegmentedDL", "segment at " + segment.start + " failed (" + e.getMessage() +
+                            "), switching to " + urls[segment.mirror]);
+                    // go straight to the next mirror, only back off once every mirror had a go
+                    if (failures % urls.length != 0) continue;
+                }
+
+                setStatus(DownloadManager.STATUS_PAUSED, DownloadManager.PAUSED_WAITING_TO_RETRY);
+                try {
+                    if (halted.await(retryDelay * (failures / urls.length), TimeUnit.MILLISECONDS)) return;
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a mirror that refused the file out of the rotation for every segment.
+     *
+     * @return the mirror to try next, or -1 if none is left
+     */
+    private int reject(int mirror) {
+        synchronized (rejected) {
+            rejected.add(urls[mirror]);
+        }
+        return nextMirror(mirror);
+    }
+
+    /**
+     * @return the first mirror after the given one that hasn't refused the file, possibly the same one, or -1 if
+     *         they all did
+     */
+    private int nextMirror(int mirror) {
+        synchronized (rejected) {
+            for (int q = 1; q <= urls.length; q++) {
+                int next = (mirror + q) % urls.length;
+                if (!rejected.contains(urls[next])) return next;
+            }
+        }
+        return -1;
+    }
+
+    private void fetchRange(Segment segment) throws IOException {
+        String mirror = urls[segment.mirror];
+        HttpGet request = new HttpGet(mirror);
+        boolean ranged = segment.end > 0;
+        // without a length there's no way to ask for the rest, start over
+        if (!ranged) segment.pos = 0;
+        if (ranged) request.addHeader("Range", "bytes=" + segment.pos + "-" + (segment.end - 1));
+
+        // the server answers with the whole file instead of the range if it's not the one we started with
+        String validator;
+        synchronized (this) {
+            validator = validators.get(mirror);
+        }
+        if (ranged && validator != null) request.addHeader("If-Range", validator);
+
+        synchronized (activeRequests) {
+            if (isHalted()) return;
+            activeRequests.add(request);
+        }
+        InputStream in = null;
+        try {
+            HttpResponse resp = getHttpClient().execute(request);
+            int code = resp.getStatusLine().getStatusCode();
+            HttpEntity entity = resp.getEntity();
+
+            if (code >= 500) throw new IOException("HTTP " + code);
+            if (code == 200 && ranged && validator != null) {
+                throw new DownloadException(DownloadManager.ERROR_CANNOT_RESUME, "file changed on the server");
+            }
+            boolean wholeFile = code == 200 && segment.pos == 0 && segments.length == 1;
+            if (code == 200 && !wholeFile) {
+                // this mirror ignores Range, another one might not
+                throw new IOException("range not supported by " + mirror);
+            }
+            if (code != 206 && !wholeFile) {
+                // a 404 or 403 on one mirror says nothing about the others
+                throw new MirrorRejectedException("HTTP " + code + " from " + mirror);
+            }
+            if (entity == null) throw new IOException("empty response");
+
+            in = entity.getContent();
+            byte[] buf = new byte[BUFFER_SIZE];
+            long windowStart = now();
+            long windowBytes = 0;
+            int read;
+            while (!isHalted() && !segment.isDone() && (read = in.read(buf)) != -1) {
+                if (ranged) read = (int) Math.min(read, segment.end - segment.pos);
+
+                ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+                while (bb.hasRemaining()) {
+                    channel.write(bb, segment.pos + bb.position());
+                }
+                synchronized (this) {
+                    segment.pos += read;
+                }
+
+                // a mirror that slows to a trickle never times out, move on if there's somewhere else to go
+                windowBytes += read;
+                long now = now();
+                if (now - windowStart >= STALL_WINDOW) {
+                    if (windowBytes < STALL_MIN_BYTES && urls.length > 1) throw new IOException("mirror stalled");
+                    windowStart = now;
+                    windowBytes = 0;
+                }
+            }
+
+            if (!ranged && !isHalted()) {
+                // no length to go by, the end of the stream is the end of the file
+                segment.end = segment.pos;
+            } else if (!isHalted() && !segment.isDone()) {
+                throw new IOException("connection closed early");
+            }
+        } finally {
+            synchronized (activeRequests) {
+                activeRequests.remove(request);
+            }
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException ignored) { }
+            }
+            request.abort();
+        }
+    }
+
+    /**
+     * Races all mirrors and ranks them, the ones that support range requests first and then by measured
+     * throughput.
+     *
+     * @return the usable mirrors, best first. Their length is -1 if the server doesn't support range requests
+     */
+    private ArrayList<Probe> probe() throws IOException {
+        int failures = 0;
+        while (true) {
+            try {
+                return probeMirrors();
+            } catch (DownloadException e) {
+                throw e;
+            } catch (IOException e) {
+                if (++failures > MAX_RETRIES || stopped) {
+                    throw new DownloadException(DownloadManager.ERROR_HTTP_DATA_ERROR, e.getMessage());
+                }
+                setStatus(DownloadManager.STATUS_PAUSED, DownloadManager.PAUSED_WAITING_TO_RETRY);
+                try {
+                    Thread.sleep(retryDelay * failures);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new DownloadException(DownloadManager.ERROR_UNKNOWN, "interrupted");
+                }
+            }
+        }
+    }
+
+    private ArrayList<Probe> probeMirrors() throws IOException {
+        // one deadline for the whole race, a mirror that hasn't answered by then is too slow to wait for
+        final long deadline = now() + probeTimeout;
+
+        ArrayList<FutureTask<Probe>> tasks = new ArrayList<FutureTask<Probe>>();
+        for (final String candidate : candidates) {
+            FutureTask<Probe> task = new FutureTask<Probe>(new Callable<Probe>() {
+                @Override
+                public Probe call() throws IOException {
+                    return probeMirror(candidate, deadline);
+                }
+            });
+            tasks.add(task);
+            EXECUTOR.execute(task);
+        }
+
+        ArrayList<Probe> results = new ArrayList<Probe>();
+        IOException error = null;
+        boolean unfinished = false;
+        try {
+            for (FutureTask<Probe> task : tasks) {
+                try {
+                    results.add(task.get(Math.max(0, deadline - now()), TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    unfinished = true;
+                    error = new IOException("no answer within " + probeTimeout + "ms");
+                } catch (ExecutionException e) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            unfinished = true;
+            throw new DownloadException(DownloadManager.ERROR_UNKNOWN, "interrupted");
+        } finally {
+            // nothing but the probes is running yet, the finished ones already let go of their requests
+            if (unfinished) abortRequests();
+        }
+        if (results.isEmpty()) throw error != null ? error : new IOException("no mirrors");
+
+        Collections.sort(results);
+        Probe best = results.get(0);
+
+        // a mirror serving a different file is no use for resuming segments from another one. if the best one
+        // supports ranges, so does every mirror that's kept
+        ArrayList<Probe> ranked = new ArrayList<Probe>();
+        for (Probe result : results) {
+            if (result.length == best.length) ranked.add(result);
+        }
+        urls = new String[ranked.size()];
+        for (int q = 0; q < urls.length; q++) {
+            urls[q] = ranked.get(q).url;
+        }
+
+        Log.v(Config.LOG_TAG + "SegmentedDL", "using " + best.url + " (" + (best.bytesPerSec / 1024) + "kb/s), " +
+                urls.length + " of " + candidates.length + " mirrors usable");
+        return ranked;
+    }
+
+    private boolean validatorsChanged(ArrayList<Probe> probes) {
+        for (Probe probe : probes) {
+            String saved = validators.get(probe.url);
+            if (saved != null && !saved.equals(probe.validator)) return true;
+        }
+        return false;
+    }
+
+    private Probe probeMirror(String mirror, long deadline) throws IOException {
+        HttpGet request = new HttpGet(mirror);
+        request.addHeader("Range", "bytes=0-" + (PROBE_BYTES - 1));
+
+        synchronized (activeRequests) {
+            if (stopped) throw new IOException("stopped");
+            activeRequests.add(request);
+        }
+        InputStream in = null;
+        try {
+            long started = now();
+            HttpResponse resp = getHttpClient().execute(request);
+            int code = resp.getStatusLine().getStatusCode();
+
+            if (code >= 500) throw new IOException("HTTP " + code);
+            if (code != 206 && code != 200) {
+                throw new DownloadException(DownloadManager.ERROR_UNHANDLED_HTTP_CODE, "HTTP " + code);
+            }
+
+            // a 200 means no range support, leave the length unknown so the download falls back to one request
+            long length = -1;
+            if (code == 206) {
+                // Content-Range: bytes 0-262143/12345678
+                Header range = resp.getFirstHeader("Content-Range");
+                if (range != null) {
+                    String value = range.getValue();
+                    int slash = value.lastIndexOf('/');
+                    if (slash != -1 && !value.endsWith("*")) {
+                        try {
+                            length = Long.parseLong(value.substring(slash + 1).trim());
+                        } catch (NumberFormatException ignored) { }
+                    }
+                }
+            }
+
+            long read = 0;
+            HttpEntity entity = resp.getEntity();
+            if (entity != null) {
+                in = entity.getContent();
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while (read < PROBE_BYTES && now() < deadline && (n = in.read(buf)) != -1) {
+                    read += n;
+                }
+            }
+
+            long elapsed = Math.max(1, now() - started);
+            return new Probe(mirror, length, read * 1000 / elapsed, getValidator(resp));
+        } finally {
+            synchronized (activeRequests) {
+                activeRequests.remove(request);
+            }
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException ignored) { }
+            }
+            request.abort();
+        }
+    }
+
+    /**
+     * @return the ETag if it's a strong one, otherwise Last-Modified, or null if neither can be used for If-Range
+     */
+    private static String getValidator(HttpResponse resp) {
+        Header etag = resp.getFirstHeader("ETag");
+        if (etag != null && !etag.getValue().startsWith("W/")) return etag.getValue();
+
+        Header lastModified = resp.getFirstHeader("Last-Modified");
+        if (lastModified != null) return lastModified.getValue();
+
+        return null;
+    }
+
+    private static Segment[] split(long length) {
+        if (length <= 0) return new Segment[] { new Segment(0, -1, 0) };
+
+        int count = (int) Math.max(1, Math.min(SEGMENTS, length / MIN_SEGMENT_SIZE));
+        long size = length / count;
+
+        Segment[] segments = new Segment[count];
+        for (int q = 0; q < count; q++) {
+            long start = q * size;
+            long end = q == count - 1 ? length : start + size;
+            segments[q] = new Segment(start, end, start);
+        }
+        return segments;
+    }
+
+    /**
+     * Monotonic, and unlike SystemClock it also ticks off-device.
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @return true if an earlier transfer of the file was picked up, its status is the one it was left in
+     */
+    boolean loadState() {
+        if (!stateFile.exists() || !file.exists()) return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+            if (in.readInt() != STATE_MAGIC) return false;
+            int version = in.readInt();
+            if (version != 2 && version != STATE_VERSION) return false;
+            if (!in.readUTF().equals(url)) return false;
+
+            // version 2 didn't record how the last run ended
+            int loadedStatus = DownloadManager.STATUS_PAUSED;
+            int loadedReason = DownloadManager.PAUSED_UNKNOWN;
+            if (version >= 3) {
+                loadedStatus = in.readInt();
+                loadedReason = in.readInt();
+            }
+
+            HashMap<String, String> loadedValidators = new HashMap<String, String>();
+            int validatorCount = in.readInt();
+            for (int q = 0; q < validatorCount; q++) {
+                loadedValidators.put(in.readUTF(), in.readUTF());
+            }
+
+            long length = in.readLong();
+            // the file is preallocated, if it's not that size anymore someone else touched it
+            if (length > 0 && file.length() != length) return false;
+
+            Segment[] loaded = new Segment[in.readInt()];
+            for (int q = 0; q < loaded.length; q++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                long pos = in.readLong();
+                loaded[q] = new Segment(start, end, end < 0 ? start : pos);
+            }
+
+            synchronized (this) {
+                status = loadedStatus;
+                reason = loadedReason;
+                totalBytes = length;
+                segments = loaded;
+                validators = loadedValidators;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "SegmentedDL", "error reading state: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try { in.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Nothing on disk can be trusted anymore, a retry has to start from scratch. The preallocated file goes too,
+     * without a state file it would look like a finished download.
+     */
+    void discardPartial() {
+        //noinspection ResultOfMethodCallIgnored
+        stateFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private synchronized Segment[] snapshotSegments() {
+        if (segments == null) return null;
+
+        Segment[] snapshot = new Segment[segments.length];
+        for (int q = 0; q < segments.length; q++) {
+            snapshot[q] = new Segment(segments[q].start, segments[q].end, segments[q].pos);
+        }
+        return snapshot;
+    }
+
+    private synchronized void saveState(Segment[] snapshot) {
+        if (snapshot == null) return;
+
+        File tmpFile = new File(stateFile.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+            out.writeUTF(url);
+            out.writeInt(status);
+            out.writeInt(reason);
+            out.writeInt(validators.size());
+            for (Map.Entry<String, String> validator : validators.entrySet()) {
+                out.writeUTF(validator.getKey());
+                out.writeUTF(validator.getValue());
+            }
+            out.writeLong(totalBytes);
+            out.writeInt(snapshot.length);
+            for (Segment segment : snapshot) {
+                out.writeLong(segment.start);
+                out.writeLong(segment.end);
+                out.writeLong(segment.pos);
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(stateFile)) {
+                Log.w(Config.LOG_TAG + "SegmentedDL", "unable to replace state file");
+            }
+        } catch (IOException e) {
+            Log.w(Config.LOG_TAG + "SegmentedDL", "error writing state: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try { out.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            // enough for a ROM and a kernel downloading at the same time. no gzip, ranges are into the raw file
+            httpClient = HttpUtils.newPooledClient(SEGMENTS * 2, CONNECT_TIMEOUT, SO_TIMEOUT, false);
+        }
+        return httpClient;
+    }
+
+    private static class Segment {
+        final long start;
+        long end; // exclusive, -1 if the length isn't known
+        long pos;
+        int mirror = 0;
+        volatile int error = 0;
+
+        Segment(long start, long end, long pos) {
+            this.start = start;
+            this.end = end;
+            this.pos = pos;
+        }
+
+        boolean isDone() {
+            return end >= 0 && pos >= end;
+        }
+    }
+
+    private static class Probe implements Comparable<Probe> {
+        final String url;
+        final long length;
+        final long bytesPerSec;
+        final String validator;
+
+        Probe(String url, long length, long bytesPerSec, String validator) {
+            this.url = url;
+            this.length = length;
+            this.bytesPerSec = bytesPerSec;
+            this.validator = validator;
+        }
+
+        /**
+         * Mirrors with a known length (range support) first, speed only breaks ties. A fast mirror that can only
+         * send the whole file would otherwise rule out all the ones that can be split into segments.
+         */
+        @Override
+        public int compareTo(Probe another) {
+            boolean ranged = length > 0;
+            if (ranged != another.length > 0) return ranged ? -1 : 1;
+            return bytesPerSec > another.bytesPerSec ? -1 : (bytesPerSec < another.bytesPerSec ? 1 : 0);
+        }
+    }
+
+    private static class MirrorRejectedException extends IOException {
+        private static final long serialVersionUID = 5520194386173528310L;
+
+        MirrorRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class DownloadException extends IOException {
+        private static final long serialVersionUID = -2384719357201834511L;
+
+        final int reason;
+
+        DownloadException(int reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+    }
+}
@@ -19,12 +19,35 @@ package com.otaupdater.utils;
 
 import android.util.Log;
 
-import java.io.DataInputStream;
+import java.io.BufferedReader;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ShellCommand {
-    private Boolean can_su;
+    public static final long DEFAULT_TIMEOUT = 60000; // ms, long enough for the user to answer a su prompt
+    public static final int MAX_OUTPUT = 1048576; // chars kept per stream per command
+
+    public static final long SU_CACHE_TTL = 3600000; // 1 hour in ms
+
+    // known superuser apps, a change to any of these invalidates the cached su check
+    public static final String[] SU_PACKAGES = new String[] {
+            "eu.chainfire.supersu",
+            "eu.chainfire.supersu.pro",
+            "com.noshufou.android.su",
+            "com.noshufou.android.su.elite",
+            "com.koushikdutta.superuser",
+            "com.thirdparty.superuser",
+            "me.phh.superuser",
+    };
+
+    // shared by all instances, so probing su (and the prompt that comes with it) happens once per TTL per process
+    private static Boolean can_su = null;
+    private static long can_su_time = 0;
 
     public final SH sh;
     public final SH su;
@@ -34,32 +57,72 @@ public class ShellCommand {
         su = new SH("su");
     }
 
+    /**
+     * Answers from the cache only, never probes.
+     *
+     * @return whether su is available, or null if it hasn't been checked recently
+     */
+    public static synchronized Boolean canSUCached() {
+        if (can_su == null || System.currentTimeMillis() - can_su_time > SU_CACHE_TTL) return null;
+        return can_su;
+    }
+
+    /**
+     * Forgets the cached su check and closes the su session, e.g. when the superuser app changed.
+     */
+    public static void invalidateSUCache() {
+        synchronized (ShellCommand.class) {
+            can_su = null;
+        }
+        Session.close("su");
+    }
+
+    public static boolean isSUPackage(String pkg) {
+        for (String suPkg : SU_PACKAGES) {
+            if (suPkg.equals(pkg)) return true;
+        }
+        return false;
+    }
+
     public boolean canSU() {
         return canSU(false);
     }
 
     @SuppressWarnings("SameParameterValue")
     public boolean canSU(boolean force_check) {
-        if (can_su == null || force_check) {
-            CommandResult r = su.runWaitFor("id");
-            StringBuilder out = new StringBuilder();
+        Boolean cached = force_check ? null : canSUCached();
+        if (cached != null) return cached;
+
+        CommandResult r = su.runWaitFor("id");
+        StringBuilder out = new StringBuilder();
+
+        if (r.stdout != null)
+            out.append(r.stdout).append(" ; ");
+        if (r.stderr != null)
+            out.append(r.stderr);
 
-            if (r.stdout != null)
-                out.append(r.stdout).append(" ; ");
-            if (r.stderr != null)
-                out.append(r.stderr);
+        Log.v(Config.LOG_TAG + "ShellCmd", "canSU() su[" + r.exit_value + "]: " + out);
 
-            Log.v(Config.LOG_TAG + "ShellCmd", "canSU() su[" + r.exit_value + "]: " + out);
+        synchronized (ShellCommand.class) {
             can_su = r.success();
+            can_su_time = System.currentTimeMillis();
         }
-        return can_su;
+        return r.success();
     }
 
     public SH suOrSH() {
         return canSU() ? su : sh;
     }
 
-    public class CommandResult {
+    /**
+     * Closes all persistent shell sessions. The next command run through {@link SH#runWaitFor(String)}
+     * will start a fresh session, a command that's running finishes in its current one.
+     */
+    public static void closeSessions() {
+        Session.closeAll();
+    }
+
+    public static class CommandResult {
         public final String stdout;
         public final String stderr;
         public final Integer exit_value;
@@ -101,46 +164,257 @@ public class ShellCommand {
             return process;
         }
 
-        @SuppressWarnings("deprecation")
-        private String getStreamLines(InputStream is) {
-            String out = null;
-            StringBuffer buffer = null;
-            DataInputStream dis = new DataInputStream(is);
+        public CommandResult runWaitFor(String s) {
+            return runWaitFor(s, DEFAULT_TIMEOUT);
+        }
+
+        /**
+         * Runs a command in this shell's persistent session and waits for it to finish.
+         *
+         * @param timeout max time to wait in ms. if exceeded the session is killed and the result has no exit value
+         */
+        public CommandResult runWaitFor(String s, long timeout) {
+            return Session.forShell(SHELL).run(s, timeout);
+        }
+    }
 
+    /**
+     * A long-lived shell process that runs many commands one after another. Each command is followed by
+     * a unique sentinel on both stdout and stderr so output and exit code can be separated without
+     * forking a new shell per command.
+     */
+    private static class Session {
+        private static final HashMap<String, Session> SESSIONS = new HashMap<String, Session>();
+
+        // stdout/stderr of all sessions are drained on these, so a full pipe can never block the shell
+        private static final ExecutorService PUMP_EXECUTOR = Executors.newCachedThreadPool();
+
+        private final String SHELL;
+        private final String SENTINEL_PREFIX = "__ota_" + Utils.randomSaltString(8) + "_";
+        private Process process = null;
+        private DataOutputStream toProcess = null;
+        private StreamCollector stdout = null;
+        private StreamCollector stderr = null;
+        private int cmdCounter = 0;
+        // set instead of closing right away, run() holds the session lock for as long as a command takes
+        private volatile boolean stale = false;
+
+        private Session(String shell) {
+            SHELL = shell;
+        }
+
+        public static synchronized Session forShell(String shell) {
+            Session session = SESSIONS.get(shell);
+            if (session == null) {
+                session = new Session(shell);
+                SESSIONS.put(shell, session);
+            }
+            return session;
+        }
+
+        /**
+         * Doesn't wait for a command that's running, the session is closed before the next one starts instead.
+         * Safe to call from the main thread.
+         */
+        public static synchronized void close(String shell) {
+            Session session = SESSIONS.get(shell);
+            if (session != null) session.stale = true;
+        }
+
+        public static synchronized void closeAll() {
+            for (Session session : SESSIONS.values()) {
+                session.stale = true;
+            }
+        }
+
+        public synchronized CommandResult run(String s, long timeout) {
+            if (stale) {
+                stale = false;
+                close();
+            }
+            if (!isAlive() && !start()) return new CommandResult(null);
+
+            String sentinel = SENTINEL_PREFIX + (cmdCounter++) + "__";
+            stdout.begin(sentinel);
+            stderr.begin(sentinel);
             try {
-                if (dis.available() > 0) {
-                    buffer = new StringBuffer(dis.readLine());
-                    while(dis.available() > 0)
-                        buffer.append("\n").append(dis.readLine());
+                toProcess.writeBytes("{\n" + s + "\n} </dev/null\n");
+                toProcess.writeBytes("echo \"" + sentinel + " $?\"\n");
+                toProcess.writeBytes("echo \"" + sentinel + "\" >&2\n");
+                toProcess.flush();
+            } catch (IOException e) {
+                Log.e(Config.LOG_TAG + "ShellCmd", "Exception while trying to run: '" + s + "' " + e.getMessage());
+                close();
+                return new CommandResult(null);
+            }
+
+            long deadline = System.currentTimeMillis() + timeout;
+            String exitLine = stdout.await(deadline);
+            String errLine = stderr.await(deadline);
+            String out = stdout.getOutput();
+            String err = stderr.getOutput();
+
+            if (exitLine == null || errLine == null) {
+                if (stdout.isFinished() && stderr.isFinished()) {
+                    // shell went away mid-command (su denied, `exit` in command, killed, etc.)
+                    Log.w(Config.LOG_TAG + "ShellCmd", SHELL + " session ended while running '" + s + "'");
+                } else {
+                    Log.w(Config.LOG_TAG + "ShellCmd", "Timed out after " + timeout + "ms running '" + s + "'");
                 }
-                dis.close();
-            } catch (Exception ex) {
-                Log.e(Config.LOG_TAG + "ShellCmd", ex.getMessage());
+                close();
+                return new CommandResult(null, out, err);
             }
-            if (buffer != null)
-                out = buffer.toString();
-            return out;
-        }
 
-        public CommandResult runWaitFor(String s) {
-            Process process = run(s);
             Integer exit_value = null;
-            String stdout = null;
-            String stderr = null;
-            if (process != null) {
-                try {
-                    exit_value = process.waitFor();
+            try {
+                exit_value = Integer.parseInt(exitLine.trim());
+            } catch (NumberFormatException e) {
+                Log.e(Config.LOG_TAG + "ShellCmd", "Bad exit status for '" + s + "': " + exitLine);
+            }
+            return new CommandResult(exit_value, out, err);
+        }
+
+        private boolean isAlive() {
+            if (process == null) return false;
+            try {
+                process.exitValue();
+                close();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        private boolean start() {
+            try {
+                process = Runtime.getRuntime().exec(SHELL);
+                toProcess = new DataOutputStream(process.getOutputStream());
+                stdout = new StreamCollector(process.getInputStream());
+                stderr = new StreamCollector(process.getErrorStream());
+                PUMP_EXECUTOR.execute(stdout);
+                PUMP_EXECUTOR.execute(stderr);
+                Log.v(Config.LOG_TAG + "ShellCmd", "started " + SHELL + " session");
+                return true;
+            } catch (IOException e) {
+                Log.e(Config.LOG_TAG + "ShellCmd", "Exception while trying to start " + SHELL + ": " + e.getMessage());
+                close();
+            }
+            return false;
+        }
 
-                    stdout = getStreamLines(process.getInputStream());
-                    stderr = getStreamLines(process.getErrorStream());
+        private synchronized void close() {
+            if (process == null) return;
+            try {
+                toProcess.writeBytes("exit\n");
+                toProcess.flush();
+            } catch (IOException ignored) { }
+            // destroying the process closes its pipes, which ends the collectors
+            process.destroy();
+            process = null;
+            toProcess = null;
+            stdout = null;
+            stderr = null;
+        }
+    }
+
+    /**
+     * Continuously drains one output stream of a session. Output is only kept while a command is running
+     * (between {@link #begin(String)} and the sentinel), up to {@link #MAX_OUTPUT} chars; anything past that
+     * is read and dropped so the shell never blocks on a full pipe.
+     */
+    private static class StreamCollector implements Runnable {
+        private final BufferedReader reader;
+
+        private final StringBuilder output = new StringBuilder();
+        private String sentinel = null;
+        private String sentinelTail = null;
+        private boolean firstLine = true;
+        private boolean truncated = false;
+        private boolean finished = false;
+
+        public StreamCollector(InputStream in) {
+            reader = new BufferedReader(new InputStreamReader(in));
+        }
 
-                } catch(InterruptedException e) {
-                    Log.e(Config.LOG_TAG + "ShellCmd", "runWaitFor " + e.toString());
-                } catch(NullPointerException e) {
-                    Log.e(Config.LOG_TAG + "ShellCmd", "runWaitFor " + e.toString());
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    onLine(line);
+                }
+            } catch (IOException ignored) {
+                // stream closed because the session was closed
+            } finally {
+                synchronized (this) {
+                    finished = true;
+                    notifyAll();
                 }
+                try { reader.close(); }
+                catch (IOException ignored) { }
+            }
+        }
+
+        private synchronized void onLine(String line) {
+            // stray output between commands (e.g. from backgrounded processes) is dropped
+            if (sentinel == null || sentinelTail != null) return;
+
+            int idx = line.indexOf(sentinel);
+            if (idx != -1) {
+                // output without a trailing newline ends up on the sentinel line
+                if (idx != 0) append(line.substring(0, idx));
+                sentinelTail = line.substring(idx + sentinel.length());
+                notifyAll();
+            } else {
+                append(line);
             }
-            return new CommandResult(exit_value, stdout, stderr);
+        }
+
+        private void append(String line) {
+            if (truncated) return;
+            if (!firstLine) output.append("\n");
+            firstLine = false;
+
+            int room = MAX_OUTPUT - output.length();
+            if (line.length() > room) {
+                output.append(line, 0, Math.max(room, 0));
+                truncated = true;
+                Log.w(Config.LOG_TAG + "ShellCmd", "command output truncated to " + MAX_OUTPUT + " chars");
+            } else {
+                output.append(line);
+            }
+        }
+
+        public synchronized void begin(String sentinel) {
+            this.sentinel = sentinel;
+            sentinelTail = null;
+            output.setLength(0);
+            firstLine = true;
+            truncated = false;
+        }
+
+        /**
+         * @return whatever followed the sentinel on its line, or null if the stream ended or the deadline passed first
+         */
+        public synchronized String await(long deadline) {
+            long remaining;
+            while (sentinelTail == null && !finished && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return sentinelTail;
+        }
+
+        public synchronized String getOutput() {
+            return output.toString();
+        }
+
+        public synchronized boolean isFinished() {
+            return finished;
         }
     }
 }
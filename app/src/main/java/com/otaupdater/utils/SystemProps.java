@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-process replacement for forking {@code getprop}. The first lookup of a prop goes through
+ * {@code android.os.SystemProperties}, which also sees props set at runtime by init scripts, and falls back to the
+ * prop files (parsed once) for props it can't answer. The result is remembered, so every later lookup of the same
+ * prop is a hash lookup.
+ */
+public class SystemProps {
+    // same order init loads them in, later files override earlier ones except for ro.* props
+    private static final String[] PROP_FILES = new String[] { "/default.prop", "/system/build.prop" };
+
+    private static final Object MISSING = new Object();
+
+    private static Map<String, Object> props = null;
+    private static final HashMap<String, Object> resolved = new HashMap<String, Object>();
+
+    private static Method sysPropGet = null;
+    private static boolean sysPropGetLoaded = false;
+
+    private SystemProps() { }
+
+    /**
+     * @return the value of the given property, or null if it isn't set or is empty (same as an empty
+     * {@code getprop} result)
+     */
+    public static synchronized String get(String name) {
+        Object value = resolved.get(name);
+        if (value == null) {
+            String sysValue = getFromSystemProperties(name);
+            if (sysValue != null && sysValue.length() != 0) {
+                value = sysValue;
+            } else {
+                if (props == null) props = load();
+                value = props.get(name);
+                if (value == null) value = MISSING;
+            }
+            resolved.put(name, value);
+        }
+        return value == MISSING ? null : (String) value;
+    }
+
+    /**
+     * Forgets everything read so far, the next lookups read the props again.
+     */
+    static synchronized void clear() {
+        resolved.clear();
+        props = null;
+    }
+
+    private static Map<String, Object> load() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (String path : PROP_FILES) {
+            File f = new File(path);
+            if (!f.canRead()) continue;
+
+            InputStream in = null;
+            try {
+                in = new FileInputStream(f);
+                parse(in, map);
+            } catch (IOException e) {
+                Log.w(Config.LOG_TAG + "SystemProps", "Unable to read " + path + ": " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try { in.close(); }
+                    catch (IOException ignored) { }
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Parses a build.prop-style file ({@code key=value} lines, {@code #} comments) into the given map.
+     * Existing {@code ro.*} entries are never overwritten.
+     */
+    static void parse(InputStream in, Map<String, Object> map) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') continue;
+
+            int eq = line.indexOf('=');
+            if (eq <= 0) continue;
+
+            String key = line.substring(0, eq).trim();
+            String value = line.substring(eq + 1).trim();
+            if (key.startsWith("ro.") && map.containsKey(key)) continue;
+
+            map.put(key, value.length() == 0 ? MISSING : value);
+        }
+    }
+
+    private static String getFromSystemProperties(String name) {
+        if (!sysPropGetLoaded) {
+            sysPropGetLoaded = true;
+            try {
+                sysPropGet = Class.forName("android.os.SystemProperties").getMethod("get", String.class);
+            } catch (Exception e) {
+                Log.w(Config.LOG_TAG + "SystemProps", "SystemProperties not available: " + e.getMessage());
+            }
+        }
+        if (sysPropGet == null) return null;
+
+        try {
+            return (String) sysPropGet.invoke(null, name);
+        } catch (Exception e) {
+            Log.w(Config.LOG_TAG + "SystemProps", "Unable to get " + name + ": " + e.getMessage());
+        }
+        return null;
+    }
+}
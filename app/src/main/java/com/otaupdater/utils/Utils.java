@@ -33,6 +33,7 @@ import android.util.Log;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
+import com.otaupdater.CheckinReceiver;
 import com.otaupdater.R;
 import com.otaupdater.SettingsActivity;
 
@@ -41,14 +42,14 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.text.Normalizer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.Random;
 
@@ -86,34 +87,32 @@ public class Utils {
         return "";
     }
 
-    private static final HashMap<File, String> MD5_FILE_CACHE = new HashMap<File, String>();
+    private static final int DIGEST_BUFFER = 1048576; // 1mb
+
+    // one per hashing thread and reused, so a direct buffer is only allocated once per thread
+    private static final ThreadLocal<ByteBuffer> DIGEST_BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(DIGEST_BUFFER);
+        }
+    };
+
     public static String md5(File f) {
         if (!f.exists()) return "";
-        if (MD5_FILE_CACHE.containsKey(f)) {
-            String cachedMD5 = MD5_FILE_CACHE.get(f);
-            int cachedMD5Split = cachedMD5.indexOf(':');
-            long lastModified = Long.parseLong(cachedMD5.substring(cachedMD5Split + 1));
-            if (lastModified == f.lastModified()) {
-                return cachedMD5.substring(0, cachedMD5Split);
-            } else {
-                MD5_FILE_CACHE.remove(f);
-            }
-        }
 
-        InputStream in = null;
+        String cachedMD5 = Md5Cache.get(f);
+        if (cachedMD5 != null) return cachedMD5;
+
+        FileInputStream in = null;
         try {
             in = new FileInputStream(f);
+            FileChannel channel = in.getChannel();
 
             MessageDigest digest = MessageDigest.getInstance("MD5");
-
-            byte[] buf = new byte[4096];
-            int nRead;
-            while ((nRead = in.read(buf)) != -1) {
-                digest.update(buf, 0, nRead);
-            }
+            updateDigest(digest, channel, 0, channel.size());
 
             String md5 = byteArrToStr(digest.digest());
-            MD5_FILE_CACHE.put(f, md5 + ":" + Long.toString(f.lastModified()));
+            Md5Cache.put(f, md5);
             return md5;
         } catch (Exception e) {
             e.printStackTrace();
@@ -126,6 +125,25 @@ public class Utils {
         return "";
     }
 
+    /**
+     * Feeds bytes [pos, end) of the channel into the digest. Reads go 1mb at a time into a direct buffer, so
+     * hashing a ROM zip takes about a thousand reads per gigabyte and no copies through the Java heap. Mapping
+     * the file is no faster (see DigestBenchmarkTest), and every mapping stays in the address space until it is
+     * garbage collected, which a 1gb+ zip can exhaust on 32-bit devices.
+     */
+    static void updateDigest(MessageDigest digest, FileChannel channel, long pos, long end) throws IOException {
+        ByteBuffer buf = DIGEST_BUFFERS.get();
+        while (pos < end) {
+            buf.clear();
+            if (end - pos < buf.capacity()) buf.limit((int) (end - pos));
+            int nRead = channel.read(buf, pos);
+            if (nRead == -1) break;
+            buf.flip();
+            digest.update(buf);
+            pos += nRead;
+        }
+    }
+
     public static String hmac(String str, String key) {
         try {
             Mac mac = Mac.getInstance(Config.HMAC_ALGORITHM);
@@ -225,6 +243,7 @@ public class Utils {
             @Override
             public void onSuccess(String message, JSONObject respObj) {
                 cfg.setPingedCurrent();
+                CheckinReceiver.onCheckinSucceeded(ctx);
 
                 if (PropUtils.isRomOtaEnabled()) {
                     RomInfo info = RomInfo.FACTORY.fromJSON(respObj.optJSONObject(RomInfo.KEY_NAME));
@@ -259,8 +278,24 @@ public class Utils {
 
             @Override
             public void onError(String message, JSONObject respObj) {
-                cfg.setGcmRegistrationId(null); //TODO maybe do something better?
                 Log.w(Config.LOG_TAG + "DeviceRegister", "error registering with server: " + message);
+                // the GCM registration itself is still good, only the server needs to hear about it again
+                cfg.clearValuesCurrent();
+                CheckinReceiver.scheduleRetry(ctx);
+            }
+        };
+
+        final APIUtils.APIAdapter pingCallback = new APIUtils.APIAdapter() {
+            @Override
+            public void onSuccess(String message, JSONObject respObj) {
+                cfg.setPingedCurrent();
+                CheckinReceiver.onCheckinSucceeded(ctx);
+            }
+
+            @Override
+            public void onError(String message, JSONObject respObj) {
+                Log.w(Config.LOG_TAG + "DeviceRegister", "error pinging server: " + message);
+                CheckinReceiver.scheduleRetry(ctx);
             }
         };
 
@@ -281,6 +316,7 @@ public class Utils {
                             APIUtils.updateDeviceRegistration(ctx, regCallback);
                         } catch (Exception ex) {
                             Log.e(Config.LOG_TAG + "DeviceRegister", "Error registering GCM: " + ex.getMessage());
+                            CheckinReceiver.scheduleRetry(ctx);
                         }
                         return null;
                     }
@@ -291,12 +327,7 @@ public class Utils {
                 APIUtils.updateDeviceRegistration(ctx, regCallback);
             } else if (cfg.needPing()) {
                 Log.v(Config.LOG_TAG + "DeviceRegister", "Already GCM registered, need to ping");
-                APIUtils.doPing(ctx, new APIUtils.APIAdapter() {
-                    @Override
-                    public void onSuccess(String message, JSONObject respObj) {
-                        cfg.setPingedCurrent();
-                    }
-                });
+                APIUtils.doPing(ctx, pingCallback);
             } else {
                 Log.v(Config.LOG_TAG + "DeviceRegister", "Already GCM registered, no ping necessary");
             }
@@ -306,12 +337,7 @@ public class Utils {
             APIUtils.updateDeviceRegistration(ctx, regCallback);
         } else if (cfg.needPing()) {
             Log.v(Config.LOG_TAG + "DeviceRegister", "Already registered, need to ping");
-            APIUtils.doPing(ctx, new APIUtils.APIAdapter() {
-                @Override
-                public void onSuccess(String message, JSONObject respObj) {
-                    cfg.setPingedCurrent();
-                }
-            });
+            APIUtils.doPing(ctx, pingCallback);
         } else {
             Log.v(Config.LOG_TAG + "DeviceRegister", "Already registered, no ping necessary");
         }
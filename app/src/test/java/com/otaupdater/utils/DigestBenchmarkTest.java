@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares ways of hashing a ROM zip sized file: small and large stream reads, mapping the file, and
+ * {@link Utils#updateDigest}. The file is hashed once before timing, so all of them read from the page cache and
+ * what's measured is the per-read overhead. Generates a 64mb file by default, set DIGEST_BENCHMARK_MB=1024 in the
+ * environment for the full 1gb run.
+ */
+public class DigestBenchmarkTest {
+    private static final int ROUNDS = 3;
+    private static final int MAP_WINDOW = 33554432; // 32mb
+
+    private interface Strategy {
+        String name();
+
+        void update(MessageDigest digest, File f) throws IOException;
+    }
+
+    private static Strategy stream(final int bufferSize) {
+        return new Strategy() {
+            @Override
+            public String name() {
+                return "stream " + (bufferSize / 1024) + "kb";
+            }
+
+            @Override
+            public void update(MessageDigest digest, File f) throws IOException {
+                FileInputStream in = new FileInputStream(f);
+                try {
+                    byte[] buf = new byte[bufferSize];
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        digest.update(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        };
+    }
+
+    private static final Strategy MMAP = new Strategy() {
+        @Override
+        public String name() {
+            return "mmap " + (MAP_WINDOW / 1048576) + "mb";
+        }
+
+        @Override
+        public void update(MessageDigest digest, File f) throws IOException {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel channel = in.getChannel();
+                long size = channel.size();
+                for (long pos = 0; pos < size; pos += MAP_WINDOW) {
+                    digest.update(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_WINDOW, size - pos)));
+                }
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    private static final Strategy UPDATE_DIGEST = new Strategy() {
+        @Override
+        public String name() {
+            return "updateDigest";
+        }
+
+        @Override
+        public void update(MessageDigest digest, File f) throws IOException {
+            FileInputStream in = new FileInputStream(f);
+            try {
+                FileChannel channel = in.getChannel();
+                Utils.updateDigest(digest, channel, 0, channel.size());
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    @Test
+    public void compareStrategies() throws Exception {
+        String sizeEnv = System.getenv("DIGEST_BENCHMARK_MB");
+        int sizeMB = sizeEnv == null ? 64 : Integer.parseInt(sizeEnv);
+
+        File f = File.createTempFile("digest", ".zip");
+        try {
+            generate(f, sizeMB);
+
+            Strategy[] strategies = new Strategy[] {
+                    stream(4096), stream(65536), stream(1048576), MMAP, UPDATE_DIGEST,
+            };
+            String expected = hash(stream(65536), f);
+            for (Strategy strategy : strategies) {
+                long best = Long.MAX_VALUE;
+                for (int q = 0; q < ROUNDS; q++) {
+                    long start = System.nanoTime();
+                    assertEquals(strategy.name(), expected, hash(strategy, f));
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.println(String.format(Locale.US, "%-14s %6d ms %8.1f mb/s",
+                        strategy.name(), best / 1000000, sizeMB / (best / 1e9)));
+            }
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+    }
+
+    private static String hash(Strategy strategy, File f) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        strategy.update(digest, f);
+        return Utils.byteArrToStr(digest.digest());
+    }
+
+    private static void generate(File f, int sizeMB) throws IOException {
+        Random random = new Random(42);
+        byte[] chunk = new byte[1048576];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            for (int q = 0; q < sizeMB; q++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
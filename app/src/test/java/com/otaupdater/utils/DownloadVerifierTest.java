@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadVerifierTest {
+    private static final String EXPECTED_MD5 = "0123456789abcdef0123456789abcdef";
+
+    private File dir;
+    private File base;
+    private File patch;
+    private File target;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("verifier", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        base = new File(dir, "base.zip");
+        patch = new File(dir, "update.zip.patch");
+        target = new File(dir, "update.zip");
+        write(base, "old build".getBytes("UTF-8"));
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void corruptPatchFallsBackToFullZip() throws Exception {
+        write(patch, "not a patch".getBytes("UTF-8"));
+        assertDeltaFailed();
+    }
+
+    @Test
+    public void patchWithWrongOutputFallsBackToFullZip() throws Exception {
+        write(patch, buildPatch("new build".getBytes("UTF-8")));
+        assertDeltaFailed();
+    }
+
+    private void assertDeltaFailed() throws Exception {
+        DownloadVerifier verifier = DownloadVerifier.forFile(target, EXPECTED_MD5, base, patch);
+        assertEquals(DownloadStatus.ERROR_DELTA_FAILED, await(verifier));
+        assertFalse(target.exists());
+        assertFalse(patch.exists());
+
+        // asking again, as the receiver does when it requeries, must not turn it into a plain file error
+        assertEquals(DownloadVerifier.STATE_FAILED, verifier.getState());
+        assertEquals(DownloadStatus.ERROR_DELTA_FAILED, await(verifier));
+
+        DownloadStatus status = new DownloadStatus(-2);
+        status.status = DownloadManager.STATUS_SUCCESSFUL;
+        status.applyVerifierState(verifier);
+        assertFalse(status.isSuccessful());
+        assertEquals(DownloadManager.STATUS_FAILED, status.getStatus());
+        assertTrue(status.needsFullDownload());
+    }
+
+    private static int await(DownloadVerifier verifier) throws InterruptedException {
+        final int[] result = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        verifier.start(new DownloadVerifier.Listener() {
+            @Override
+            public void onVerified(int error) {
+                result[0] = error;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    /**
+     * @return a well-formed patch that ignores the old file and writes {@code contents}
+     */
+    private static byte[] buildPatch(byte[] contents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("OTAUPDATER/BSDGZ".getBytes("UTF-8"));
+        out.write(offtin(contents.length));
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        GZIPOutputStream gz = new GZIPOutputStream(records);
+        gz.write(offtin(0)); // diffLen
+        gz.write(offtin(contents.length)); // extraLen
+        gz.write(offtin(0)); // seek
+        gz.write(contents);
+        gz.close();
+
+        out.write(records.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] offtin(long value) {
+        byte[] b = new byte[8];
+        long magnitude = Math.abs(value);
+        for (int q = 0; q < 8; q++) {
+            b[q] = (byte) (magnitude >>> (8 * q));
+        }
+        if (value < 0) b[7] |= 0x80;
+        return b;
+    }
+
+    private static void write(File f, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
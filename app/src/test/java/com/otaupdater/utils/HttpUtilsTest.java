@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpUtilsTest {
+    private byte[] body;
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // about what a rom/kernel pull answers with, repeated until it's worth compressing
+        StringBuilder json = new StringBuilder("{\"rom\":[");
+        for (int q = 0; q < 200; q++) {
+            if (q != 0) json.append(',');
+            json.append("{\"name\":\"rom\",\"version\":\"1.").append(q).append("\",\"changelog\":\"fixes and improvements\",")
+                    .append("\"url\":\"http://example.com/rom-1.").append(q).append(".zip\",\"md5\":\"0123456789abcdef0123456789abcdef\"}");
+        }
+        json.append("]}");
+        body = json.toString().getBytes("UTF-8");
+
+        server = new LocalHttpServer(body);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void sendsUncompressedWithoutGzip() throws IOException {
+        server.encoding = "gzip";
+        assertTrue(Arrays.equals(body, get(HttpUtils.newPooledClient(2, 5000, 5000, false))));
+        assertEquals(body.length, server.getBodyBytes());
+    }
+
+    @Test
+    public void decodesGzipResponse() throws IOException {
+        server.encoding = "gzip";
+        assertTrue(Arrays.equals(body, get(HttpUtils.newPooledClient(2, 5000, 5000, true))));
+        assertTrue(server.getBodyBytes() * 4 < body.length);
+    }
+
+    @Test
+    public void decodesDeflateResponse() throws IOException {
+        server.encoding = "deflate";
+        assertTrue(Arrays.equals(body, get(HttpUtils.newPooledClient(2, 5000, 5000, true))));
+        assertTrue(server.getBodyBytes() * 4 < body.length);
+    }
+
+    @Test
+    public void decodesRawDeflateResponse() throws IOException {
+        server.encoding = "deflate";
+        server.rawDeflate = true;
+        assertTrue(Arrays.equals(body, get(HttpUtils.newPooledClient(2, 5000, 5000, true))));
+        assertTrue(server.getBodyBytes() * 4 < body.length);
+    }
+
+    @Test
+    public void gzipsRequestBody() throws IOException {
+        String json = new String(body, "UTF-8");
+        HttpPost request = new HttpPost(server.getUrl("device/register"));
+        request.setEntity(HttpUtils.newCompressedEntity(json));
+        consume(HttpUtils.newPooledClient(2, 5000, 5000, true).execute(request));
+
+        assertEquals("gzip", server.getRequestEncoding());
+        byte[] sent = server.getRequestBody();
+        assertTrue(sent.length * 4 < body.length);
+        assertTrue(Arrays.equals(body, readFully(new GZIPInputStream(new ByteArrayInputStream(sent)))));
+    }
+
+    @Test
+    public void sendsTinyRequestBodyAsIs() throws IOException {
+        HttpEntity entity = HttpUtils.newCompressedEntity("{}");
+        assertEquals(null, entity.getContentEncoding());
+        assertEquals(2, entity.getContentLength());
+    }
+
+    private byte[] get(HttpClient client) throws IOException {
+        HttpResponse resp = client.execute(new HttpGet(server.getUrl("rom")));
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        return consume(resp);
+    }
+
+    private static byte[] consume(HttpResponse resp) throws IOException {
+        HttpEntity entity = resp.getEntity();
+        if (entity == null) return new byte[0];
+
+        InputStream in = entity.getContent();
+        try {
+            return readFully(in);
+        } finally {
+            entity.consumeContent();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
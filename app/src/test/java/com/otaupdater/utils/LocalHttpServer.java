@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stand-in for a download mirror or the API, serving one body on every path. Understands single Range and If-Range
+ * requests, and can be told to be slow, to reject requests or to drop connections part way through a body.
+ */
+class LocalHttpServer {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final byte[] body;
+
+    volatile String etag = "\"v1\"";
+    volatile long latency = 0; // ms before every response
+    volatile long bytesPerSec = 0; // per response, 0 for no limit
+    volatile boolean ignoreRange = false;
+    volatile int rejectAfter = -1; // requests answered normally before every further one gets rejectCode
+    volatile int rejectCode = 404;
+    volatile String rejectRange = null; // Range headers starting with this get rejectCode
+    volatile String encoding = null; // "gzip" or "deflate", used when the request accepts it
+    volatile boolean rawDeflate = false; // deflate without the zlib wrapper, as some servers send it
+
+    private long budget = -1; // body bytes left before a connection is dropped, -1 for no limit
+    private boolean failWhenSpent = false;
+
+    private int requests = 0;
+    private long bodyBytes = 0;
+    private final ArrayList<String> ranges = new ArrayList<String>();
+    private String requestEncoding = null;
+    private byte[] requestBody = null;
+
+    LocalHttpServer(byte[] body) throws IOException {
+        this.body = body;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+    }
+
+    /**
+     * Drops the connection once this many more body bytes were sent. After that every request is answered with a
+     * 503 if failWhenSpent is set, otherwise things carry on as normal.
+     */
+    synchronized void dropAfter(long bytes, boolean failWhenSpent) {
+        this.budget = bytes;
+        this.failWhenSpent = failWhenSpent;
+    }
+
+    synchronized void resetCounts() {
+        requests = 0;
+        bodyBytes = 0;
+        ranges.clear();
+    }
+
+    synchronized int getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the body bytes written to the wire, after compression
+     */
+    synchronized long getBodyBytes() {
+        return bodyBytes;
+    }
+
+    synchronized List<String> getRanges() {
+        return new ArrayList<String>(ranges);
+    }
+
+    synchronized String getRequestEncoding() {
+        return requestEncoding;
+    }
+
+    synchronized byte[] getRequestBody() {
+        return requestBody;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        byte[] posted = readFully(exchange.getRequestBody());
+        boolean failed;
+        int count;
+        synchronized (this) {
+            count = ++requests;
+            ranges.add(range);
+            if (posted.length > 0) {
+                requestEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                requestBody = posted;
+            }
+            failed = budget == 0 && failWhenSpent;
+        }
+
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        if (failed) {
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+        String rejectRange = this.rejectRange;
+        if ((rejectAfter >= 0 && count > rejectAfter) ||
+                (rejectRange != null && range != null && range.startsWith(rejectRange))) {
+            exchange.sendResponseHeaders(rejectCode, -1);
+            return;
+        }
+
+        int code = 200;
+        int start = 0;
+        int end = body.length; // exclusive
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null && !ignoreRange && (ifRange == null || ifRange.equals(etag))) {
+            // bytes=first-last
+            String[] bounds = range.substring(range.indexOf('=') + 1).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (bounds[1].length() != 0) end = Math.min(end, Integer.parseInt(bounds[1]) + 1);
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + body.length);
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+
+        byte[] out = new byte[end - start];
+        System.arraycopy(body, start, out, 0, out.length);
+
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        String encoding = this.encoding;
+        if (encoding != null && accepted != null && accepted.contains(encoding)) {
+            out = compress(out, encoding, rawDeflate);
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+
+        exchange.sendResponseHeaders(code, out.length == 0 ? -1 : out.length);
+        OutputStream os = exchange.getResponseBody();
+        for (int off = 0; off < out.length; off += CHUNK_SIZE) {
+            int want = Math.min(CHUNK_SIZE, out.length - off);
+            int granted = take(want);
+            os.write(out, off, granted);
+            os.flush();
+            if (granted < want) {
+                // closing a fixed length body short of its length drops the connection
+                return;
+            }
+
+            if (bytesPerSec > 0) {
+                try {
+                    Thread.sleep(want * 1000 / bytesPerSec);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized int take(int want) {
+        int granted = want;
+        if (budget >= 0) {
+            granted = (int) Math.min(want, budget);
+            budget -= granted;
+            if (granted < want && !failWhenSpent) budget = -1;
+        }
+        bodyBytes += granted;
+        return granted;
+    }
+
+    private static byte[] compress(byte[] data, String encoding, boolean raw) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        OutputStream out = encoding.equals("gzip") ? new GZIPOutputStream(buf) :
+                new DeflaterOutputStream(buf, new Deflater(Deflater.DEFAULT_COMPRESSION, raw));
+        out.write(data);
+        out.close();
+        return buf.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            buf.write(chunk, 0, n);
+        }
+        return buf.toByteArray();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OAuthTokenCacheTest {
+    private static final long NOW = 1400000000000L;
+    private static final long MINUTE = 60000;
+
+    @Test
+    public void nothingCachedIsNotUsable() {
+        assertFalse(OAuthTokenCache.isUsable(null, NOW + 30 * MINUTE, NOW));
+    }
+
+    @Test
+    public void noTokenIsRememberedForItsWholeLifetime() {
+        // fetchToken stores "" for a minute when there is no account, that must not be expired on arrival
+        long expires = NOW + MINUTE;
+        assertTrue(OAuthTokenCache.isUsable("", expires, NOW));
+        assertTrue(OAuthTokenCache.isUsable("", expires, expires - 1));
+        assertFalse(OAuthTokenCache.isUsable("", expires, expires));
+    }
+
+    @Test
+    public void noTokenIsNeverRefreshedEarly() {
+        assertFalse(OAuthTokenCache.needsRefresh("", NOW + MINUTE, NOW));
+    }
+
+    @Test
+    public void tokenIsNotHandedOutInItsLastMinute() {
+        long expires = NOW + 30 * MINUTE;
+        assertTrue(OAuthTokenCache.isUsable("token", expires, expires - MINUTE - 1));
+        assertFalse(OAuthTokenCache.isUsable("token", expires, expires - MINUTE));
+    }
+
+    @Test
+    public void tokenIsRefreshedInItsLastTenMinutes() {
+        long expires = NOW + 30 * MINUTE;
+        assertFalse(OAuthTokenCache.needsRefresh("token", expires, expires - 10 * MINUTE - 1));
+        assertTrue(OAuthTokenCache.needsRefresh("token", expires, expires - 10 * MINUTE));
+    }
+}
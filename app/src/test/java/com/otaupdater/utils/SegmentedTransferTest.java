@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedTransferTest {
+    private static final int LENGTH = 16 * 1048576 + 12345; // four segments
+    private static final int PROBE_BYTES = 262144;
+
+    private static final SegmentedTransfer.Listener LISTENER = new SegmentedTransfer.Listener() {
+        @Override
+        public boolean waitForNetwork() {
+            return true;
+        }
+
+        @Override
+        public void onProgress() {
+        }
+    };
+
+    private byte[] content;
+    private File dir;
+    private File file;
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[LENGTH];
+        new Random(42).nextBytes(content);
+
+        dir = File.createTempFile("segmented", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        file = new File(dir, "update.zip");
+
+        server = new LocalHttpServer(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    @Test
+    public void downloadsInSegments() throws IOException {
+        SegmentedTransfer transfer = newTransfer(server.getUrl("update.zip"));
+        assertTrue(transfer.run(LISTENER));
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, transfer.getStatus());
+        assertContent();
+        assertFalse(SegmentedTransfer.hasPartial(file));
+        // the probe and one request per segment
+        assertEquals(5, server.getRequests());
+    }
+
+    @Test
+    public void resumesSegmentAfterDroppedConnection() throws IOException {
+        server.dropAfter(LENGTH / 3, false);
+
+        SegmentedTransfer transfer = newTransfer(server.getUrl("update.zip"));
+        assertTrue(transfer.run(LISTENER));
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, transfer.getStatus());
+        assertContent();
+        // the dropped segment picked up where it stopped instead of fetching anything twice
+        assertEquals(6, server.getRequests());
+        assertEquals(LENGTH + PROBE_BYTES, server.getBodyBytes());
+    }
+
+    @Test
+    public void resumesFromStateFileAfterFailing() throws IOException {
+        server.dropAfter(LENGTH / 2, true);
+
+        SegmentedTransfer failed = newTransfer(server.getUrl("update.zip"));
+        assertTrue(failed.run(LISTENER));
+        assertEquals(DownloadManager.STATUS_FAILED, failed.getStatus());
+        assertEquals(DownloadManager.ERROR_HTTP_DATA_ERROR, failed.getReason());
+        assertTrue(SegmentedTransfer.hasPartial(file));
+
+        long kept = failed.getDownloadedBytes();
+        assertTrue(kept > 0 && kept < LENGTH);
+
+        server.dropAfter(-1, false);
+        server.resetCounts();
+
+        SegmentedTransfer resumed = newTransfer(server.getUrl("update.zip"));
+        assertTrue(resumed.loadState());
+        assertEquals(kept, resumed.getDownloadedBytes());
+        assertTrue(resumed.run(LISTENER));
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, resumed.getStatus());
+        assertContent();
+        // only what was missing was asked for again
+        assertEquals(LENGTH - kept + PROBE_BYTES, server.getBodyBytes());
+    }
+
+    @Test
+    public void startsOverWhenFileChanged() throws IOException {
+        server.dropAfter(LENGTH / 2, true);
+        assertTrue(newTransfer(server.getUrl("update.zip")).run(LISTENER));
+        assertTrue(SegmentedTransfer.hasPartial(file));
+
+        server.dropAfter(-1, false);
+        server.etag = "\"v2\"";
+        server.resetCounts();
+
+        SegmentedTransfer resumed = newTransfer(server.getUrl("update.zip"));
+        assertTrue(resumed.loadState());
+        assertTrue(resumed.run(LISTENER));
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, resumed.getStatus());
+        assertContent();
+        assertEquals(LENGTH + PROBE_BYTES, server.getBodyBytes());
+    }
+
+    @Test
+    public void stopsOtherSegmentsOnHardError() throws IOException {
+        // every segment would take 16s at this rate
+        server.bytesPerSec = 262144;
+        server.rejectRange = "bytes=" + (LENGTH / 4 * 2) + "-";
+
+        SegmentedTransfer transfer = newTransfer(server.getUrl("update.zip"));
+        long started = System.currentTimeMillis();
+        assertTrue(transfer.run(LISTENER));
+
+        assertEquals(DownloadManager.STATUS_FAILED, transfer.getStatus());
+        assertEquals(DownloadManager.ERROR_UNHANDLED_HTTP_CODE, transfer.getReason());
+        assertTrue(System.currentTimeMillis() - started < 8000);
+        // what the other segments got so far is kept for a retry
+        assertTrue(SegmentedTransfer.hasPartial(file));
+    }
+
+    @Test
+    public void failsOverWhenMirrorRefuses() throws IOException {
+        // answers the probe quickest, then refuses every segment
+        server.rejectAfter = 1;
+        LocalHttpServer slow = new LocalHttpServer(content);
+        try {
+            slow.latency = 300;
+
+            SegmentedTransfer transfer = newTransfer(server.getUrl("update.zip"), slow.getUrl("update.zip"));
+            assertTrue(transfer.run(LISTENER));
+
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, transfer.getStatus());
+            assertContent();
+            assertEquals(LENGTH + PROBE_BYTES, slow.getBodyBytes());
+        } finally {
+            slow.stop();
+        }
+    }
+
+    @Test
+    public void failsWhenEveryMirrorRefuses() throws IOException {
+        server.rejectAfter = 1;
+        LocalHttpServer other = new LocalHttpServer(content);
+        try {
+            other.rejectAfter = 1;
+            other.rejectCode = 403;
+
+            SegmentedTransfer transfer = newTransfer(server.getUrl("update.zip"), other.getUrl("update.zip"));
+            assertTrue(transfer.run(LISTENER));
+
+            assertEquals(DownloadManager.STATUS_FAILED, transfer.getStatus());
+            assertEquals(DownloadManager.ERROR_UNHANDLED_HTTP_CODE, transfer.getReason());
+        } finally {
+            other.stop();
+        }
+    }
+
+    @Test
+    public void startsOnFastestMirror() throws IOException {
+        LocalHttpServer slow = new LocalHttpServer(content);
+        try {
+            slow.latency = 300;
+
+            SegmentedTransfer transfer = newTransfer(slow.getUrl("update.zip"), server.getUrl("update.zip"));
+            assertTrue(transfer.run(LISTENER));
+
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, transfer.getStatus());
+            assertContent();
+            // only the probe went to the slow one
+            assertEquals(1, slow.getRequests());
+            assertEquals(5, server.getRequests());
+        } finally {
+            slow.stop();
+        }
+    }
+
+    @Test
+    public void probeDoesNotWaitForHungMirror() throws IOException {
+        LocalHttpServer hung = new LocalHttpServer(content);
+        try {
+            hung.latency = 60000;
+
+            SegmentedTransfer transfer = newTransfer(hung.getUrl("update.zip"), server.getUrl("update.zip"));
+            transfer.probeTimeout = 1000;
+            long started = System.currentTimeMillis();
+            assertTrue(transfer.run(LISTENER));
+
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, transfer.getStatus());
+            assertTrue(System.currentTimeMillis() - started < 8000);
+            assertContent();
+            assertEquals(LENGTH + PROBE_BYTES, server.getBodyBytes());
+        } finally {
+            hung.stop();
+        }
+    }
+
+    private SegmentedTransfer newTransfer(String... urls) {
+        SegmentedTransfer transfer = new SegmentedTransfer(file, urls);
+        transfer.retryDelay = 10;
+        return transfer;
+    }
+
+    private void assertContent() throws IOException {
+        assertEquals(LENGTH, file.length());
+
+        byte[] written = new byte[LENGTH];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < written.length && (n = in.read(written, off, written.length - off)) != -1) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(content, written));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 OTA Update Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.otaupdater.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SystemPropsTest {
+    private static Map<String, Object> parse(String contents, Map<String, Object> map) throws IOException {
+        SystemProps.parse(new ByteArrayInputStream(contents.getBytes("UTF-8")), map);
+        return map;
+    }
+
+    private static Map<String, Object> parse(String contents) throws IOException {
+        return parse(contents, new HashMap<String, Object>());
+    }
+
+    @Test
+    public void skipsCommentsAndBlankLines() throws IOException {
+        Map<String, Object> map = parse("# begin build properties\n\n   \nro.build.id=KOT49H\n  # indented comment\n");
+        assertEquals(1, map.size());
+        assertEquals("KOT49H", map.get("ro.build.id"));
+    }
+
+    @Test
+    public void splitsOnFirstEquals() throws IOException {
+        Map<String, Object> map = parse("ro.config.extra=key=value=with=equals\n");
+        assertEquals("key=value=with=equals", map.get("ro.config.extra"));
+    }
+
+    @Test
+    public void handlesCrlf() throws IOException {
+        Map<String, Object> map = parse("ro.product.device=mako\r\nro.build.type=user\r\n");
+        assertEquals("mako", map.get("ro.product.device"));
+        assertEquals("user", map.get("ro.build.type"));
+    }
+
+    @Test
+    public void trimsKeysAndValues() throws IOException {
+        Map<String, Object> map = parse("  persist.sys.foo  =  bar  \n");
+        assertEquals("bar", map.get("persist.sys.foo"));
+    }
+
+    @Test
+    public void skipsLinesWithoutKey() throws IOException {
+        Map<String, Object> map = parse("=orphan\nnot a property\n");
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void emptyValueIsNotAString() throws IOException {
+        Map<String, Object> map = parse("ro.modversion=\n");
+        assertTrue(map.containsKey("ro.modversion"));
+        assertFalse(map.get("ro.modversion") instanceof String);
+    }
+
+    @Test
+    public void laterFilesOnlyOverrideWritableProps() throws IOException {
+        Map<String, Object> map = parse("ro.secure=1\npersist.sys.usb.config=mtp\n");
+        parse("ro.secure=0\npersist.sys.usb.config=adb\n", map);
+        assertEquals("1", map.get("ro.secure"));
+        assertEquals("adb", map.get("persist.sys.usb.config"));
+        assertNull(map.get("ro.debuggable"));
+    }
+}